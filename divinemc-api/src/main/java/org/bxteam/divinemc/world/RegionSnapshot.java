@@ -0,0 +1,79 @@
+package org.bxteam.divinemc.world;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable copy of the blocks and biomes of a rectangle of chunks, taken at a single point of a world's tick.
+ * <p>
+ * All methods may be called from any thread, the snapshot never changes after it was taken and does not
+ * keep the chunks loaded. Use it for scans that are too heavy for the tick thread, like map renderers or
+ * region analysis, instead of reading the world asynchronously.
+ *
+ * @see World#getRegionSnapshot(int, int, int, int)
+ */
+public interface RegionSnapshot {
+    /**
+     * @return the world this snapshot was taken from
+     */
+    @NotNull World getWorld();
+
+    /**
+     * Returns the game time of the world when this snapshot was taken. Snapshots of the same world
+     * taken in the same tick have the same version.
+     *
+     * @return the version of this snapshot
+     */
+    long getVersion();
+
+    int getMinChunkX();
+
+    int getMinChunkZ();
+
+    int getMaxChunkX();
+
+    int getMaxChunkZ();
+
+    /**
+     * @param chunkX the chunk x coordinate
+     * @param chunkZ the chunk z coordinate
+     * @return whether the chunk is inside this snapshot's rectangle
+     */
+    boolean containsChunk(int chunkX, int chunkZ);
+
+    /**
+     * Returns the snapshot of a single chunk.
+     *
+     * @param chunkX the chunk x coordinate
+     * @param chunkZ the chunk z coordinate
+     * @return the chunk snapshot, or null if the chunk was not loaded when this snapshot was taken
+     * @throws IllegalArgumentException if the chunk is outside this snapshot's rectangle
+     */
+    @Nullable ChunkSnapshot getChunkSnapshot(int chunkX, int chunkZ);
+
+    /**
+     * Returns the block data at the given block coordinates.
+     *
+     * @param x the block x coordinate
+     * @param y the block y coordinate
+     * @param z the block z coordinate
+     * @return the block data, or null if the chunk was not loaded when this snapshot was taken
+     * @throws IllegalArgumentException if the block is outside this snapshot's rectangle
+     */
+    @Nullable BlockData getBlockData(int x, int y, int z);
+
+    /**
+     * Returns the biome at the given block coordinates.
+     *
+     * @param x the block x coordinate
+     * @param y the block y coordinate
+     * @param z the block z coordinate
+     * @return the biome, or null if the chunk was not loaded when this snapshot was taken
+     * @throws IllegalArgumentException if the block is outside this snapshot's rectangle
+     */
+    @Nullable Biome getBiome(int x, int y, int z);
+}
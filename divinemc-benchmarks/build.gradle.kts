@@ -0,0 +1,21 @@
+plugins {
+    id("me.champeau.jmh") version "0.7.3"
+}
+
+dependencies {
+    jmh(project(":divinemc-server"))
+}
+
+// ./gradlew :divinemc-benchmarks:jmh -Pjmh.includes=ChunkRead -Pjmh.corpus=/path/to/world/region
+jmh {
+    jmhVersion = "1.37"
+    jvmArgs = listOf("-Xms2G", "-Xmx2G", "--add-modules=jdk.incubator.vector")
+    resultFormat = "JSON"
+
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+    providers.gradleProperty("jmh.corpus").orNull?.let { benchmarkParameters.put("corpus", objects.listProperty(String::class.java).value(listOf(it))) }
+}
+
+tasks.withType<PublishToMavenRepository>().configureEach {
+    enabled = false
+}
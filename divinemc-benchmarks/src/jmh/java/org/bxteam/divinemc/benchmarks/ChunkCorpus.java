@@ -0,0 +1,239 @@
+package org.bxteam.divinemc.benchmarks;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.storage.RegionStorageInfo;
+import org.bxteam.divinemc.region.EnumRegionFileExtension;
+import org.bxteam.divinemc.region.IRegionFile;
+import org.bxteam.divinemc.region.RegionFileInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Uncompressed chunk NBT payloads to feed the region file benchmarks, one full region worth of chunks.
+ *
+ * <p>The {@code synthetic} corpus generates overworld-like chunks: stone and ores below a noisy surface,
+ * air above it, light arrays and a few block entities. Any other corpus name is a path to a captured
+ * region folder (for example a copy of {@code world/region}), whose chunks are read in any region format.
+ */
+public final class ChunkCorpus {
+    public static final String SYNTHETIC = "synthetic";
+    public static final int REGION_CHUNKS = 32 * 32;
+
+    private static final Pattern REGION_FILE = Pattern.compile("^r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.([a-z_]+)$");
+    private static final String[] STONE_PALETTE = {
+        "minecraft:stone", "minecraft:deepslate", "minecraft:andesite", "minecraft:granite", "minecraft:diorite",
+        "minecraft:gravel", "minecraft:coal_ore", "minecraft:iron_ore", "minecraft:copper_ore", "minecraft:water"
+    };
+    private static final String[] SURFACE_PALETTE = {
+        "minecraft:air", "minecraft:grass_block", "minecraft:dirt", "minecraft:stone", "minecraft:short_grass",
+        "minecraft:oak_log", "minecraft:oak_leaves", "minecraft:water"
+    };
+    private static final String[] BIOMES = { "minecraft:plains", "minecraft:forest", "minecraft:river" };
+
+    private ChunkCorpus() {
+    }
+
+    public static @NotNull List<byte[]> load(@NotNull String corpus) throws IOException {
+        final List<byte[]> chunks = SYNTHETIC.equals(corpus) ? synthetic(REGION_CHUNKS, 0L) : captured(Path.of(corpus));
+        if (chunks.isEmpty()) {
+            throw new IOException("Corpus " + corpus + " contains no chunks");
+        }
+
+        return chunks;
+    }
+
+    public static @NotNull RegionStorageInfo storageInfo() {
+        return new RegionStorageInfo("benchmark", Level.OVERWORLD, "region");
+    }
+
+    public static @NotNull IRegionFile open(@NotNull EnumRegionFileExtension format, @NotNull Path folder, int regionX, int regionZ) throws IOException {
+        final Path file = folder.resolve("r." + regionX + "." + regionZ + "." + format.getArgument());
+        return format.getCreator().create(new RegionFileInfo(storageInfo(), file, folder, false));
+    }
+
+    public static @NotNull List<byte[]> synthetic(int count, long seed) throws IOException {
+        final List<byte[]> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                NbtIo.write(syntheticChunk(new Random(seed * 31L + i), i & 31, i >> 5), out);
+            }
+            chunks.add(bytes.toByteArray());
+        }
+
+        return chunks;
+    }
+
+    private static CompoundTag syntheticChunk(Random random, int chunkX, int chunkZ) {
+        final CompoundTag chunk = new CompoundTag();
+        chunk.putInt("xPos", chunkX);
+        chunk.putInt("zPos", chunkZ);
+        chunk.putInt("yPos", -4);
+        chunk.putString("Status", "minecraft:full");
+        chunk.putLong("LastUpdate", random.nextInt(1_000_000));
+        chunk.putLong("InhabitedTime", random.nextInt(100_000));
+
+        // sections 0-8 are underground, 9-11 hold the surface, everything above is empty
+        final int surfaceSection = 9 + random.nextInt(3);
+        final ListTag sections = new ListTag();
+        for (int y = -4; y < 20; y++) {
+            final int index = y + 4;
+            final CompoundTag section = new CompoundTag();
+            section.putByte("Y", (byte) y);
+
+            if (index < surfaceSection) {
+                section.put("block_states", blockStates(random, STONE_PALETTE, 2 + random.nextInt(STONE_PALETTE.length - 2)));
+                section.putByteArray("BlockLight", new byte[2048]);
+            } else if (index == surfaceSection) {
+                section.put("block_states", blockStates(random, SURFACE_PALETTE, SURFACE_PALETTE.length));
+                section.putByteArray("BlockLight", randomBytes(random, 2048));
+                section.putByteArray("SkyLight", randomBytes(random, 2048));
+            } else {
+                section.put("block_states", blockStates(random, SURFACE_PALETTE, 1));
+                final byte[] fullSky = new byte[2048];
+                Arrays.fill(fullSky, (byte) 0xFF);
+                section.putByteArray("SkyLight", fullSky);
+            }
+
+            final CompoundTag biomes = new CompoundTag();
+            final ListTag biomePalette = new ListTag();
+            biomePalette.add(StringTag.valueOf(BIOMES[random.nextInt(BIOMES.length)]));
+            biomes.put("palette", biomePalette);
+            section.put("biomes", biomes);
+
+            sections.add(section);
+        }
+        chunk.put("sections", sections);
+
+        final CompoundTag heightmaps = new CompoundTag();
+        for (String type : new String[] { "MOTION_BLOCKING", "MOTION_BLOCKING_NO_LEAVES", "OCEAN_FLOOR", "WORLD_SURFACE" }) {
+            heightmaps.putLongArray(type, packedData(random, 9, 256));
+        }
+        chunk.put("Heightmaps", heightmaps);
+
+        final ListTag blockEntities = new ListTag();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            final CompoundTag blockEntity = new CompoundTag();
+            blockEntity.putString("id", "minecraft:chest");
+            blockEntity.putInt("x", (chunkX << 4) + random.nextInt(16));
+            blockEntity.putInt("y", random.nextInt(64));
+            blockEntity.putInt("z", (chunkZ << 4) + random.nextInt(16));
+            blockEntity.put("Items", new ListTag());
+            blockEntities.add(blockEntity);
+        }
+        chunk.put("block_entities", blockEntities);
+
+        return chunk;
+    }
+
+    private static CompoundTag blockStates(Random random, String[] palette, int paletteSize) {
+        final CompoundTag states = new CompoundTag();
+        final ListTag paletteTag = new ListTag();
+        for (int i = 0; i < paletteSize; i++) {
+            final CompoundTag state = new CompoundTag();
+            state.putString("Name", palette[i]);
+            paletteTag.add(state);
+        }
+        states.put("palette", paletteTag);
+
+        if (paletteSize > 1) {
+            final int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+            states.putLongArray("data", runs(random, bits, paletteSize));
+        }
+
+        return states;
+    }
+
+    /**
+     * Packs 4096 palette indices in runs of equal blocks, which compress like real terrain rather than noise.
+     */
+    private static long[] runs(Random random, int bits, int paletteSize) {
+        final int perLong = 64 / bits;
+        final long[] data = new long[(4096 + perLong - 1) / perLong];
+
+        int value = 0;
+        int remaining = 0;
+        for (int i = 0; i < 4096; i++) {
+            if (remaining-- <= 0) {
+                value = random.nextInt(10) < 7 ? 0 : random.nextInt(paletteSize);
+                remaining = 1 + random.nextInt(48);
+            }
+            data[i / perLong] |= (long) value << ((i % perLong) * bits);
+        }
+
+        return data;
+    }
+
+    private static long[] packedData(Random random, int bits, int count) {
+        final int perLong = 64 / bits;
+        final long[] data = new long[(count + perLong - 1) / perLong];
+        final int base = 64 + random.nextInt(32);
+
+        for (int i = 0; i < count; i++) {
+            data[i / perLong] |= (long) (base + random.nextInt(4)) << ((i % perLong) * bits);
+        }
+
+        return data;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static List<byte[]> captured(Path folder) throws IOException {
+        final List<byte[]> chunks = new ArrayList<>(REGION_CHUNKS);
+
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                final Matcher matcher = REGION_FILE.matcher(file.getFileName().toString());
+                final EnumRegionFileExtension format = matcher.matches() ? EnumRegionFileExtension.fromString(matcher.group(3)) : null;
+                if (format == null) {
+                    continue;
+                }
+
+                final int regionX = Integer.parseInt(matcher.group(1));
+                final int regionZ = Integer.parseInt(matcher.group(2));
+                try (IRegionFile region = open(format, folder, regionX, regionZ)) {
+                    for (int i = 0; i < REGION_CHUNKS && chunks.size() < REGION_CHUNKS; i++) {
+                        final ChunkPos pos = new ChunkPos((regionX << 5) + (i & 31), (regionZ << 5) + (i >> 5));
+                        if (!region.hasChunk(pos)) {
+                            continue;
+                        }
+
+                        try (DataInputStream in = region.getChunkDataInputStream(pos)) {
+                            if (in != null) {
+                                chunks.add(in.readAllBytes());
+                            }
+                        }
+                    }
+                }
+
+                if (chunks.size() >= REGION_CHUNKS) {
+                    break;
+                }
+            }
+        }
+
+        return chunks;
+    }
+}
@@ -0,0 +1,50 @@
+package org.bxteam.divinemc.benchmarks;
+
+import org.bxteam.divinemc.region.IRegionFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overwrites a number of chunks in a full region file and flushes it to disk, the work of one
+ * write-back window for that region.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkFlushBenchmark extends RegionFileBenchmark {
+    @Param({ "1", "64", "1024" })
+    public int dirtyChunks;
+
+    private IRegionFile file;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void createRegion() throws IOException {
+        this.file = this.open(0, 0);
+        this.writeRegion(this.file, 0, 0);
+        flush(this.file);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeRegion() throws IOException {
+        this.file.close();
+    }
+
+    @Benchmark
+    public void writeAndFlush() throws IOException {
+        for (int i = 0; i < this.dirtyChunks; i++) {
+            final int index = this.cursor++;
+            writeChunk(this.file, chunkPos(0, 0, index & (ChunkCorpus.REGION_CHUNKS - 1)), this.chunks.get(index % this.chunks.size()));
+        }
+
+        flush(this.file);
+    }
+}
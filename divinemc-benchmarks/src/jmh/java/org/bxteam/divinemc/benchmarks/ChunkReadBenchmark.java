@@ -0,0 +1,64 @@
+package org.bxteam.divinemc.benchmarks;
+
+import org.bxteam.divinemc.region.IRegionFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads single chunks from a full region file, either in file order or in a fixed random order that
+ * defeats any read-ahead of the format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChunkReadBenchmark extends RegionFileBenchmark {
+    private final int[] randomOrder = new int[ChunkCorpus.REGION_CHUNKS];
+    private IRegionFile file;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void createRegion() throws IOException {
+        try (IRegionFile file = this.open(0, 0)) {
+            this.writeRegion(file, 0, 0);
+        }
+
+        final Random random = new Random(42L);
+        for (int i = 0; i < this.randomOrder.length; i++) {
+            final int j = random.nextInt(i + 1);
+            this.randomOrder[i] = this.randomOrder[j];
+            this.randomOrder[j] = i;
+        }
+
+        this.file = this.open(0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeRegion() throws IOException {
+        this.file.close();
+    }
+
+    @Benchmark
+    public byte[] sequentialRead() throws IOException {
+        return this.read(this.cursor++ & (ChunkCorpus.REGION_CHUNKS - 1));
+    }
+
+    @Benchmark
+    public byte[] randomRead() throws IOException {
+        return this.read(this.randomOrder[this.cursor++ & (ChunkCorpus.REGION_CHUNKS - 1)]);
+    }
+
+    private byte[] read(int index) throws IOException {
+        try (DataInputStream in = this.file.getChunkDataInputStream(chunkPos(0, 0, index))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.bxteam.divinemc.benchmarks;
+
+import org.bxteam.divinemc.region.IRegionFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a full region into a new region file and closes it, which includes compressing every chunk and
+ * getting the file onto disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkWriteBenchmark extends RegionFileBenchmark {
+    @Setup(Level.Invocation)
+    public void deleteRegion() throws IOException {
+        this.delete(0, 0);
+    }
+
+    @Benchmark
+    public void writeFullRegion() throws IOException {
+        try (IRegionFile file = this.open(0, 0)) {
+            this.writeRegion(file, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.bxteam.divinemc.benchmarks;
+
+import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.region.IRegionFile;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps replacing chunks with payloads of a different size and flushing, which leaves holes behind in
+ * formats that update in place. MCA reuses free sectors, linear rewrites the whole file and buffered
+ * moves chunks into holes within the compaction budget; the file size at the end of each iteration,
+ * reported as the {@code fileSizeKib} counter, shows how well each of them keeps up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompactionBenchmark extends RegionFileBenchmark {
+    private static final int CHURN_BATCH = 32;
+
+    @Param({ "0", "1024" })
+    public int compactionBudgetKb;
+
+    private IRegionFile file;
+    private int cursor;
+    private int generation;
+
+    @Setup(Level.Trial)
+    public void createRegion() throws IOException {
+        DivineConfig.MiscCategory.bufferedCompactionBudgetKb = this.compactionBudgetKb;
+
+        this.file = this.open(0, 0);
+        this.writeRegion(this.file, 0, 0);
+        flush(this.file);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeRegion() throws IOException {
+        this.file.close();
+    }
+
+    @Benchmark
+    public void churnAndFlush(FileSize fileSize) throws IOException {
+        for (int i = 0; i < CHURN_BATCH; i++) {
+            final int index = this.cursor++ & (ChunkCorpus.REGION_CHUNKS - 1);
+            if (index == 0) {
+                this.generation++;
+            }
+
+            // shift the payload of every chunk by a generation so its size changes on each pass
+            writeChunk(this.file, chunkPos(0, 0, index), this.chunks.get((index + this.generation * 7) % this.chunks.size()));
+        }
+
+        flush(this.file);
+        fileSize.fileSizeKib = Files.size(this.file.getPath()) / 1024;
+    }
+
+    /**
+     * Size of the region file after the last flush of an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class FileSize {
+        public long fileSizeKib;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.fileSizeKib = 0L;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.bxteam.divinemc.benchmarks;
+
+import net.minecraft.world.level.ChunkPos;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.region.EnumRegionFileExtension;
+import org.bxteam.divinemc.region.IRegionFile;
+import org.bxteam.divinemc.region.RegionWriteBackScheduler;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Common state of the region file benchmarks: the format and compression level under test, the chunk
+ * corpus and a scratch folder for the region files.
+ *
+ * <p>Region files are opened through their {@link EnumRegionFileExtension} creator like the server does,
+ * but without the chunk read cache in front of them, so reads always hit the format itself. The write-back
+ * scheduler is held back for the duration of the run, the benchmarks flush explicitly where they measure it.
+ * The compression level is part of the format parameter, since it does not apply to MCA, which always uses
+ * the vanilla compression.
+ */
+@State(Scope.Thread)
+@Fork(value = 1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public abstract class RegionFileBenchmark {
+    @Param({ "mca", "linear:1", "linear:3", "linear:9", "b_linear:1", "b_linear:3", "b_linear:9" })
+    public String format;
+
+    @Param({ ChunkCorpus.SYNTHETIC })
+    public String corpus;
+
+    protected EnumRegionFileExtension regionFormat;
+    protected int compressionLevel;
+    protected List<byte[]> chunks;
+    protected Path folder;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        final int separator = this.format.indexOf(':');
+        this.regionFormat = EnumRegionFileExtension.fromString(separator < 0 ? this.format : this.format.substring(0, separator));
+        if (this.regionFormat == null) {
+            throw new IllegalArgumentException("Unknown region format " + this.format);
+        }
+
+        this.compressionLevel = separator < 0 ? DivineConfig.MiscCategory.linearCompressionLevel : Integer.parseInt(this.format.substring(separator + 1));
+        DivineConfig.MiscCategory.linearCompressionLevel = this.compressionLevel;
+        DivineConfig.MiscCategory.linearIoFlushDelayMs = Integer.MAX_VALUE;
+
+        this.chunks = ChunkCorpus.load(this.corpus);
+        this.folder = Files.createTempDirectory("divinemc-region-benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    protected IRegionFile open(int regionX, int regionZ) throws IOException {
+        return ChunkCorpus.open(this.regionFormat, this.folder, regionX, regionZ);
+    }
+
+    protected void delete(int regionX, int regionZ) throws IOException {
+        Files.deleteIfExists(this.folder.resolve("r." + regionX + "." + regionZ + "." + this.regionFormat.getArgument()));
+    }
+
+    protected static ChunkPos chunkPos(int regionX, int regionZ, int index) {
+        return new ChunkPos((regionX << 5) + (index & 31), (regionZ << 5) + (index >> 5));
+    }
+
+    protected static void writeChunk(IRegionFile file, ChunkPos pos, byte[] data) throws IOException {
+        try (DataOutputStream out = file.getChunkDataOutputStream(pos)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Fills every chunk of a region from the corpus, cycling through it if it holds less than a region.
+     */
+    protected void writeRegion(IRegionFile file, int regionX, int regionZ) throws IOException {
+        for (int i = 0; i < ChunkCorpus.REGION_CHUNKS; i++) {
+            writeChunk(file, chunkPos(regionX, regionZ, i), this.chunks.get(i % this.chunks.size()));
+        }
+    }
+
+    /**
+     * Flushes a region file all the way to disk, like a write-back window followed by its sync.
+     */
+    protected static void flush(IRegionFile file) throws IOException {
+        file.flush();
+        if (file instanceof RegionWriteBackScheduler.Target target) {
+            target.force();
+        }
+    }
+}
@@ -3,11 +3,10 @@ package org.bxteam.divinemc.async;
 import net.minecraft.server.MinecraftServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.async.budget.CpuBudget;
 import org.bxteam.divinemc.async.pathfinding.AsyncPathProcessor;
 import org.bxteam.divinemc.async.tracking.MultithreadedTracker;
-import org.bxteam.divinemc.config.DivineConfig;
-import org.bxteam.divinemc.region.EnumRegionFileExtension;
-import org.bxteam.divinemc.region.type.BufferedRegionFile;
+import org.bxteam.divinemc.region.RegionWriteBackScheduler;
 
 import java.util.concurrent.TimeUnit;
 
@@ -16,11 +15,16 @@ public class ExecutorShutdown {
     public static final Logger LOGGER = LogManager.getLogger(ExecutorShutdown.class.getSimpleName());
 
     public static void shutdown(MinecraftServer server) {
-        if (BufferedRegionFile.flusherInitialized && DivineConfig.MiscCategory.regionFileType == EnumRegionFileExtension.B_LINEAR) {
-            LOGGER.info("Shutting down buffered region executors...");
+        if (CpuBudget.isRunning()) {
+            LOGGER.info("Shutting down CPU budget...");
+            CpuBudget.shutdown();
+        }
+
+        if (RegionWriteBackScheduler.isRunning()) {
+            LOGGER.info("Shutting down region write-back scheduler...");
 
             try {
-                BufferedRegionFile.shutdown();
+                RegionWriteBackScheduler.shutdown();
             } catch (InterruptedException ignored) { }
         }
 
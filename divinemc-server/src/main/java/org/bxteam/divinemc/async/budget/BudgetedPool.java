@@ -0,0 +1,18 @@
+package org.bxteam.divinemc.async.budget;
+
+/**
+ * A pool of threads whose size is managed by the {@link CpuBudget}.
+ */
+public interface BudgetedPool {
+    /**
+     * @return the number of threads the pool currently runs work on
+     */
+    int threads();
+
+    void resize(int threads);
+
+    /**
+     * @return the time threads of the pool spent running work since it was created, summed over all threads
+     */
+    long busyNanos();
+}
@@ -0,0 +1,57 @@
+package org.bxteam.divinemc.async.budget;
+
+import java.io.Serial;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A {@link Semaphore} limiting how many tasks run at once, whose permits are managed by the {@link CpuBudget}.
+ *
+ * <p>Only the single permit {@link #acquire()} and {@link #release()} count towards the busy time, they are
+ * what the tasks use. Resizing may leave fewer permits available than are currently held, new tasks then
+ * wait until enough running ones finish.
+ */
+public class BudgetedSemaphore extends Semaphore implements BudgetedPool {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final transient BusyTime busyTime = new BusyTime();
+    private volatile int permits;
+
+    public BudgetedSemaphore(int permits) {
+        super(permits);
+        this.permits = permits;
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        super.acquire();
+        this.busyTime.begin();
+    }
+
+    @Override
+    public void release() {
+        this.busyTime.end();
+        super.release();
+    }
+
+    @Override
+    public int threads() {
+        return this.permits;
+    }
+
+    @Override
+    public synchronized void resize(int threads) {
+        final int delta = threads - this.permits;
+        if (delta > 0) {
+            super.release(delta);
+        } else if (delta < 0) {
+            this.reducePermits(-delta);
+        }
+        this.permits = threads;
+    }
+
+    @Override
+    public long busyNanos() {
+        return this.busyTime.busyNanos();
+    }
+}
@@ -0,0 +1,58 @@
+package org.bxteam.divinemc.async.budget;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ThreadPoolExecutor} that measures how busy its threads are and can be resized by the {@link CpuBudget}.
+ *
+ * <p>The pools of this kind use unbounded or large queues, so they never grow past their core size on their
+ * own and the core size is the number of threads they run on.
+ */
+public class BudgetedThreadPoolExecutor extends ThreadPoolExecutor implements BudgetedPool {
+    private final BusyTime busyTime = new BusyTime();
+
+    public BudgetedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue,
+                                      ThreadFactory threadFactory) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+    }
+
+    public BudgetedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue,
+                                      ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        this.busyTime.begin();
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+        this.busyTime.end();
+        super.afterExecute(runnable, throwable);
+    }
+
+    @Override
+    public int threads() {
+        return this.getCorePoolSize();
+    }
+
+    @Override
+    public void resize(int threads) {
+        // the maximum is left alone when shrinking, pools with a bounded queue still grow into it before rejecting tasks
+        if (threads > this.getMaximumPoolSize()) {
+            this.setMaximumPoolSize(threads);
+        }
+        this.setCorePoolSize(threads);
+    }
+
+    @Override
+    public long busyNanos() {
+        return this.busyTime.busyNanos();
+    }
+}
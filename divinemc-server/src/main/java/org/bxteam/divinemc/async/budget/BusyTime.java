@@ -0,0 +1,28 @@
+package org.bxteam.divinemc.async.budget;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sums the time spent between {@link #begin()} and {@link #end()} over any number of threads, including the
+ * part of the intervals that are still running when it is read.
+ */
+final class BusyTime {
+    private final LongAdder nanos = new LongAdder();
+    private final AtomicInteger running = new AtomicInteger();
+
+    void begin() {
+        this.nanos.add(-System.nanoTime());
+        this.running.incrementAndGet();
+    }
+
+    void end() {
+        this.running.decrementAndGet();
+        this.nanos.add(System.nanoTime());
+    }
+
+    long busyNanos() {
+        // not read atomically, an interval starting or ending right now may be off by its length so far
+        return this.nanos.sum() + this.running.get() * System.nanoTime();
+    }
+}
@@ -0,0 +1,254 @@
+package org.bxteam.divinemc.async.budget;
+
+import net.minecraft.server.MinecraftServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shares the cores left to the server's own thread pools between them, instead of every pool running
+ * the thread count it was configured with no matter what the others do.
+ *
+ * <p>Every interval, each registered pool is measured and moved by at most one thread:
+ * <ul>
+ *     <li>pools working on the tick ({@link Pool#isTickCritical()}) only run in bursts during it, their
+ *     utilization says little about how many threads they need. They grow while the tick runs behind its
+ *     target and they had work, and only give a thread back when the pools together ask for more than the
+ *     budget holds, first while the tick spends less than half of its time;</li>
+ *     <li>the other pools grow when their threads are busy most of the time and shrink when the remaining
+ *     threads could take over the work of one without being that busy.</li>
+ * </ul>
+ * When the pools ask for more threads than the budget holds, the ones declared last in {@link Pool} give
+ * theirs up first. The configured thread counts of the pools are their upper bounds, every pool keeps at
+ * least one thread.
+ */
+public final class CpuBudget {
+    private static final Logger LOGGER = LogManager.getLogger(CpuBudget.class.getSimpleName());
+    private static final double GROW_UTILIZATION = 0.85;
+    private static final double SHRINK_UTILIZATION = 0.6;
+    private static final double TICK_BEHIND = 0.9;
+    private static final double TICK_IDLE = 0.5;
+    private static final double TICK_WORK_UTILIZATION = 0.1;
+    private static final Object LOCK = new Object();
+    private static final Slot[] SLOTS = new Slot[Pool.values().length];
+
+    private static volatile Thread budgetThread;
+    private static volatile boolean running = false;
+    private static volatile boolean stopped = false;
+
+    private CpuBudget() {
+    }
+
+    /**
+     * The pools sharing the budget, in the order they keep their threads when it runs short.
+     */
+    public enum Pool {
+        WORLD_TICKING("World Ticking", true),
+        REGION_TICKING("Region Ticking", true),
+        ENTITY_TRACKER("Entity Tracker", false),
+        PATHFINDING("Pathfinding", false);
+
+        private final String displayName;
+        private final boolean tickCritical;
+
+        Pool(String displayName, boolean tickCritical) {
+            this.displayName = displayName;
+            this.tickCritical = tickCritical;
+        }
+
+        public String getDisplayName() {
+            return this.displayName;
+        }
+
+        /**
+         * @return whether the tick waits for the work of this pool
+         */
+        public boolean isTickCritical() {
+            return this.tickCritical;
+        }
+    }
+
+    /**
+     * @param utilization share of the last interval the pool's threads were busy
+     */
+    public record Allocation(Pool pool, int threads, int maxThreads, double utilization) {
+    }
+
+    /**
+     * Hands the size of a pool over to the budget, does nothing if the budget is disabled.
+     *
+     * @param maxThreads the configured thread count of the pool
+     */
+    public static void register(@NotNull Pool pool, @NotNull BudgetedPool target, int maxThreads) {
+        if (!DivineConfig.AsyncCategory.cpuBudgetEnabled) {
+            return;
+        }
+
+        synchronized (LOCK) {
+            SLOTS[pool.ordinal()] = new Slot(target, Math.max(1, maxThreads));
+        }
+        start();
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of threads the pools may run together
+     */
+    public static int budget() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - DivineConfig.AsyncCategory.cpuBudgetReservedThreads);
+    }
+
+    /**
+     * @return the current size of every registered pool
+     */
+    public static @NotNull List<Allocation> allocations() {
+        final List<Allocation> allocations = new ArrayList<>(SLOTS.length);
+        synchronized (LOCK) {
+            for (Pool pool : Pool.values()) {
+                final Slot slot = SLOTS[pool.ordinal()];
+                if (slot != null) {
+                    allocations.add(new Allocation(pool, slot.target.threads(), slot.maxThreads, slot.utilization));
+                }
+            }
+        }
+
+        return allocations;
+    }
+
+    public static void shutdown() {
+        synchronized (LOCK) {
+            stopped = true;
+            running = false;
+        }
+
+        final Thread thread = budgetThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static void start() {
+        synchronized (LOCK) {
+            if (running || stopped) {
+                return;
+            }
+
+            running = true;
+            budgetThread = Thread.ofPlatform()
+                .name("CPU Budget")
+                .daemon(true)
+                .start(CpuBudget::run);
+        }
+    }
+
+    private static void run() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(Math.max(1, DivineConfig.AsyncCategory.cpuBudgetIntervalSeconds)));
+            if (!running) {
+                break;
+            }
+
+            try {
+                rebalance();
+            } catch (Throwable throwable) {
+                LOGGER.error("Failed to rebalance thread pools", throwable);
+            }
+        }
+    }
+
+    private static void rebalance() {
+        final MinecraftServer server = MinecraftServer.getServer();
+        if (server == null) {
+            return;
+        }
+
+        final double tickLoad = (double) server.getAverageTickTimeNanos() / server.tickRateManager().nanosecondsPerTick();
+        final long now = System.nanoTime();
+
+        synchronized (LOCK) {
+            final int[] wanted = new int[SLOTS.length];
+            int total = 0;
+
+            for (int i = 0; i < SLOTS.length; i++) {
+                final Slot slot = SLOTS[i];
+                if (slot == null) {
+                    continue;
+                }
+
+                final int threads = slot.target.threads();
+                final long busy = slot.target.busyNanos();
+                slot.utilization = Math.min(1.0, (double) (busy - slot.lastBusyNanos) / ((now - slot.lastSampleNanos) * (double) threads));
+                slot.lastBusyNanos = busy;
+                slot.lastSampleNanos = now;
+
+                int target = threads;
+                if (Pool.values()[i].isTickCritical()) {
+                    if (tickLoad > TICK_BEHIND && slot.utilization > TICK_WORK_UTILIZATION) {
+                        target++;
+                    }
+                } else if (slot.utilization > GROW_UTILIZATION) {
+                    target++;
+                } else if (threads > 1 && slot.utilization * threads / (threads - 1) < SHRINK_UTILIZATION) {
+                    target--;
+                }
+
+                wanted[i] = Math.clamp(target, 1, slot.maxThreads);
+                total += wanted[i];
+            }
+
+            // an idle tick leaves room in the tick pools, those give a thread back before the others are cut
+            if (tickLoad < TICK_IDLE) {
+                for (int i = SLOTS.length - 1; i >= 0 && total > budget(); i--) {
+                    if (SLOTS[i] != null && Pool.values()[i].isTickCritical() && wanted[i] > 1) {
+                        wanted[i]--;
+                        total--;
+                    }
+                }
+            }
+
+            // take threads back from the least important pools until everything fits
+            for (int i = SLOTS.length - 1; i >= 0 && total > budget(); i--) {
+                if (SLOTS[i] == null) {
+                    continue;
+                }
+
+                final int taken = Math.min(wanted[i] - 1, total - budget());
+                wanted[i] -= taken;
+                total -= taken;
+            }
+
+            for (int i = 0; i < SLOTS.length; i++) {
+                final Slot slot = SLOTS[i];
+                if (slot != null && wanted[i] != slot.target.threads()) {
+                    LOGGER.debug("Resizing {} from {} to {} threads ({}% busy, tick load {}%)", Pool.values()[i].getDisplayName(),
+                        slot.target.threads(), wanted[i], Math.round(slot.utilization * 100.0), Math.round(tickLoad * 100.0));
+                    slot.target.resize(wanted[i]);
+                }
+            }
+        }
+    }
+
+    private static final class Slot {
+        private final BudgetedPool target;
+        private final int maxThreads;
+        private long lastBusyNanos;
+        private long lastSampleNanos;
+        private double utilization;
+
+        private Slot(BudgetedPool target, int maxThreads) {
+            this.target = target;
+            this.maxThreads = maxThreads;
+            this.lastBusyNanos = target.busyNanos();
+            this.lastSampleNanos = System.nanoTime();
+        }
+    }
+}
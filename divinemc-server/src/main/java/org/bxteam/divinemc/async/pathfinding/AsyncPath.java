@@ -11,6 +11,7 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
 public class AsyncPath extends Path {
@@ -34,6 +35,11 @@ public class AsyncPath extends Path {
      */
     private final Supplier<Path> pathSupplier;
 
+    /**
+     * completes once the processor is done with this path
+     */
+    private final CompletableFuture<Void> processing;
+
     /*
      * Processed values
      */
@@ -69,7 +75,23 @@ public class AsyncPath extends Path {
         this.positions = positions;
         this.pathSupplier = pathSupplier;
 
-        AsyncPathProcessor.queue(this);
+        this.processing = AsyncPathProcessor.queue(this);
+    }
+
+    /**
+     * creates a path that is processed once the processor is done with another path instead of being queued itself
+     *
+     * @param leader - the path this one waits for
+     */
+    public AsyncPath(@NotNull List<Node> emptyNodeList, @NotNull Set<BlockPos> positions, @NotNull Supplier<Path> pathSupplier, @NotNull AsyncPath leader) {
+        //noinspection ConstantConditions
+        super(emptyNodeList, null, false);
+
+        this.nodes = emptyNodeList;
+        this.positions = positions;
+        this.pathSupplier = pathSupplier;
+
+        this.processing = AsyncPathProcessor.queueAfter(this, leader.processing);
     }
 
     @Override
@@ -5,6 +5,8 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.pathfinder.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.async.budget.BudgetedThreadPoolExecutor;
+import org.bxteam.divinemc.async.budget.CpuBudget;
 import org.bxteam.divinemc.config.DivineConfig;
 import org.bxteam.divinemc.util.NamedAgnosticThreadFactory;
 import org.jetbrains.annotations.NotNull;
@@ -24,7 +26,7 @@ public class AsyncPathProcessor {
     private static final Logger LOGGER = LogManager.getLogger(THREAD_PREFIX);
 
     private static long lastWarnMillis = System.currentTimeMillis();
-    public static final ThreadPoolExecutor PATH_PROCESSING_EXECUTOR = new ThreadPoolExecutor(
+    public static final BudgetedThreadPoolExecutor PATH_PROCESSING_EXECUTOR = new BudgetedThreadPoolExecutor(
         1,
         DivineConfig.AsyncCategory.asyncPathfindingMaxThreads,
         DivineConfig.AsyncCategory.asyncPathfindingKeepalive, TimeUnit.SECONDS,
@@ -33,6 +35,10 @@ public class AsyncPathProcessor {
         new RejectedTaskHandler()
     );
 
+    static {
+        CpuBudget.register(CpuBudget.Pool.PATHFINDING, PATH_PROCESSING_EXECUTOR, DivineConfig.AsyncCategory.asyncPathfindingMaxThreads);
+    }
+
     private static class RejectedTaskHandler implements RejectedExecutionHandler {
         @Override
         public void rejectedExecution(Runnable rejectedTask, ThreadPoolExecutor executor) {
@@ -73,6 +79,17 @@ public class AsyncPathProcessor {
             });
     }
 
+    /**
+     * processes a path on the thread that completes another path's processing, or right away if it is already done
+     */
+    protected static CompletableFuture<Void> queueAfter(@NotNull AsyncPath path, @NotNull CompletableFuture<Void> leader) {
+        return leader.thenRun(path::process)
+            .exceptionally(throwable -> {
+                LOGGER.warn("Error occurred while processing async path", throwable);
+                return null;
+            });
+    }
+
     /**
      * takes a possibly unprocessed path, and waits until it is completed
      * the consumer will be immediately invoked if the path is already processed
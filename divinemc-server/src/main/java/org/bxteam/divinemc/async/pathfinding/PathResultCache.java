@@ -0,0 +1,333 @@
+package org.bxteam.divinemc.async.pathfinding;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.entity.Mob;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.pathfinder.Node;
+import net.minecraft.world.level.pathfinder.NodeEvaluator;
+import net.minecraft.world.level.pathfinder.Path;
+import net.minecraft.world.level.pathfinder.PathType;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares the paths found by the async pathfinder between mobs running the same search.
+ *
+ * <p>A search is the same when it is run by a mob of the same type and size, with the same step height, fall
+ * distance and pathfinding maluses, from the same start block, to the same targets, with the same
+ * {@link NodeEvaluatorFeatures} and limits. The first request of a search is queued as usual. Requests made
+ * while it is processed wait for it instead of being queued, see
+ * {@link AsyncPath#AsyncPath(java.util.List, Set, Supplier, AsyncPath)}, and requests made after it is done
+ * get a copy of its nodes right away.
+ *
+ * <p>A found path is reused for {@code expire-ticks} game ticks of its level at most, and dropped as soon as a
+ * block changes in a chunk between its start and targets or in a chunk one of its nodes is in. Searches
+ * spanning more than {@link #MAX_SPAN_CHUNKS} chunks on an axis are not cached. Each level has its own cache
+ * and lock, so block updates in one level never wait on searches in another.
+ */
+public final class PathResultCache {
+    private static final int MAX_SPAN_CHUNKS = 8;
+    private static final int SWEEP_INTERVAL_TICKS = 1200;
+    private static final PathType[] PATH_TYPES = PathType.values();
+
+    private static final ConcurrentHashMap<ServerLevel, LevelCache> LEVELS = new ConcurrentHashMap<>();
+
+    private PathResultCache() {
+    }
+
+    /**
+     * Returns the path of a search, shared with other mobs running the same search if possible.
+     *
+     * @param nodeEvaluator the prepared node evaluator of the search, returned to the {@link NodeEvaluatorCache}
+     *                      here if the search does not run
+     * @param search        runs the search and returns the node evaluator
+     */
+    public static @Nullable Path findPath(@NotNull Mob mob, @NotNull NodeEvaluator nodeEvaluator, @NotNull Node start, @NotNull Set<BlockPos> targets,
+                                         float maxRange, int reachRange, int maxVisitedNodes, @NotNull Supplier<Path> search) {
+        if (!DivineConfig.AsyncCategory.asyncPathfindingResultCache || !(mob.level() instanceof ServerLevel level)) {
+            return new AsyncPath(new ArrayList<>(), targets, search);
+        }
+
+        int minChunkX = start.x >> 4, maxChunkX = minChunkX;
+        int minChunkZ = start.z >> 4, maxChunkZ = minChunkZ;
+        for (final BlockPos target : targets) {
+            minChunkX = Math.min(minChunkX, target.getX() >> 4);
+            maxChunkX = Math.max(maxChunkX, target.getX() >> 4);
+            minChunkZ = Math.min(minChunkZ, target.getZ() >> 4);
+            maxChunkZ = Math.max(maxChunkZ, target.getZ() >> 4);
+        }
+
+        if (maxChunkX - minChunkX >= MAX_SPAN_CHUNKS || maxChunkZ - minChunkZ >= MAX_SPAN_CHUNKS) {
+            return new AsyncPath(new ArrayList<>(), targets, search);
+        }
+
+        final Key key = new Key(mob.getType(), mob.getBbWidth(), mob.getBbHeight(), mob.maxUpStep(), mob.getMaxFallDistance(), maluses(mob),
+            NodeEvaluatorFeatures.fromNodeEvaluator(nodeEvaluator), start.asBlockPos(), Set.copyOf(targets), maxRange, reachRange, maxVisitedNodes);
+        final long now = level.getGameTime();
+        final LevelCache cache = LEVELS.computeIfAbsent(level, LevelCache::new);
+
+        Entry entry;
+        boolean found;
+        boolean sweep;
+        synchronized (cache) {
+            cache.expire(now);
+
+            entry = cache.entries.get(key);
+            found = entry != null;
+            if (!found) {
+                entry = new Entry(cache, key, search, now + DivineConfig.AsyncCategory.asyncPathfindingResultCacheExpireTicks);
+                cache.add(entry);
+                for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                    for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                        cache.index(entry, ChunkPos.asLong(chunkX, chunkZ));
+                    }
+                }
+            }
+
+            sweep = now - cache.nextSweep >= 0;
+            if (sweep) {
+                cache.nextSweep = now + SWEEP_INTERVAL_TICKS;
+            }
+        }
+
+        if (sweep) {
+            sweepUnloaded();
+        }
+
+        if (!found) {
+            final AsyncPath path = new AsyncPath(new ArrayList<>(), targets, entry::get);
+            entry.leader = path;
+            return path;
+        }
+
+        nodeEvaluator.done();
+        NodeEvaluatorCache.returnNodeEvaluator(nodeEvaluator);
+
+        if (entry.done) {
+            return copy(entry.result);
+        }
+
+        final Entry shared = entry;
+        final Supplier<Path> copy = () -> copy(shared.get());
+        final AsyncPath leader = shared.leader;
+        return leader == null ? new AsyncPath(new ArrayList<>(), targets, copy) : new AsyncPath(new ArrayList<>(), targets, copy, leader);
+    }
+
+    /**
+     * Drops the paths crossing the chunk of a changed block, called when the level sends a block update right
+     * before navigating mobs are asked to recompute their paths. Like that recomputation it does not run when
+     * Paper's {@code update-pathfinding-on-block-update} is disabled, cached paths then only expire.
+     */
+    public static void invalidate(@NotNull ServerLevel level, @NotNull BlockPos pos) {
+        final LevelCache cache = LEVELS.get(level);
+        if (cache == null || cache.size == 0) {
+            return;
+        }
+
+        synchronized (cache) {
+            final ReferenceArrayList<Entry> entries = cache.byChunk.get(ChunkPos.asLong(pos));
+            if (entries == null) {
+                return;
+            }
+
+            for (final Entry entry : entries.toArray(new Entry[0])) {
+                cache.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the caches of the levels that are no longer loaded, as their searches no longer expire anything.
+     */
+    private static void sweepUnloaded() {
+        for (final LevelCache cache : LEVELS.values()) {
+            if (cache.level.getServer().getLevel(cache.level.dimension()) != cache.level && LEVELS.remove(cache.level, cache)) {
+                synchronized (cache) {
+                    cache.clear();
+                }
+            }
+        }
+    }
+
+    private static float[] maluses(Mob mob) {
+        final float[] maluses = new float[PATH_TYPES.length];
+        for (int i = 0; i < PATH_TYPES.length; i++) {
+            maluses[i] = mob.getPathfindingMalus(PATH_TYPES[i]);
+        }
+
+        return maluses;
+    }
+
+    private static @Nullable Path copy(@Nullable Path path) {
+        return path == null ? null : new Path(new ArrayList<>(path.nodes), path.getTarget(), path.canReach());
+    }
+
+    /**
+     * The cached paths of a level, guarded by the monitor of the cache.
+     */
+    private static final class LevelCache {
+        private final ServerLevel level;
+        private final Object2ObjectOpenHashMap<Key, Entry> entries = new Object2ObjectOpenHashMap<>();
+        private final ArrayDeque<Entry> byAge = new ArrayDeque<>();
+        private final Long2ObjectOpenHashMap<ReferenceArrayList<Entry>> byChunk = new Long2ObjectOpenHashMap<>();
+        private volatile int size = 0;
+        private long nextSweep;
+
+        private LevelCache(ServerLevel level) {
+            this.level = level;
+            this.nextSweep = level.getGameTime() + SWEEP_INTERVAL_TICKS;
+        }
+
+        private void add(Entry entry) {
+            while (this.entries.size() >= DivineConfig.AsyncCategory.asyncPathfindingResultCacheMaxEntries && !this.byAge.isEmpty()) {
+                this.remove(this.byAge.poll());
+            }
+
+            this.entries.put(entry.key, entry);
+            this.byAge.add(entry);
+            this.size = this.entries.size();
+        }
+
+        private void index(Entry entry, long chunk) {
+            if (entry.chunks.add(chunk)) {
+                this.byChunk.computeIfAbsent(chunk, key -> new ReferenceArrayList<>()).add(entry);
+            }
+        }
+
+        private void remove(Entry entry) {
+            if (entry.removed) {
+                return;
+            }
+
+            entry.removed = true;
+            this.entries.remove(entry.key, entry);
+            this.size = this.entries.size();
+
+            for (final LongIterator iterator = entry.chunks.iterator(); iterator.hasNext(); ) {
+                final long chunk = iterator.nextLong();
+                final ReferenceArrayList<Entry> entries = this.byChunk.get(chunk);
+                if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+                    this.byChunk.remove(chunk);
+                }
+            }
+        }
+
+        private void expire(long now) {
+            Entry entry;
+            while ((entry = this.byAge.peek()) != null && (entry.removed || now - entry.expiresAt >= 0)) {
+                this.byAge.poll();
+                this.remove(entry);
+            }
+        }
+
+        private void clear() {
+            for (final Entry entry : this.entries.values()) {
+                entry.removed = true;
+            }
+
+            this.entries.clear();
+            this.byAge.clear();
+            this.byChunk.clear();
+            this.size = 0;
+        }
+    }
+
+    private record Key(
+        EntityType<?> type,
+        float width,
+        float height,
+        float maxUpStep,
+        int maxFallDistance,
+        float[] maluses,
+        NodeEvaluatorFeatures features,
+        BlockPos start,
+        Set<BlockPos> targets,
+        float maxRange,
+        int reachRange,
+        int maxVisitedNodes
+    ) {
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj || obj instanceof Key key
+                && this.type == key.type
+                && Float.compare(this.width, key.width) == 0
+                && Float.compare(this.height, key.height) == 0
+                && Float.compare(this.maxUpStep, key.maxUpStep) == 0
+                && this.maxFallDistance == key.maxFallDistance
+                && Arrays.equals(this.maluses, key.maluses)
+                && this.features.equals(key.features)
+                && this.start.equals(key.start)
+                && this.targets.equals(key.targets)
+                && Float.compare(this.maxRange, key.maxRange) == 0
+                && this.reachRange == key.reachRange
+                && this.maxVisitedNodes == key.maxVisitedNodes;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hash(this.type, this.width, this.height, this.maxUpStep, this.maxFallDistance, this.features, this.start,
+                this.targets, this.maxRange, this.reachRange, this.maxVisitedNodes) + Arrays.hashCode(this.maluses);
+        }
+    }
+
+    private static final class Entry {
+        private final LevelCache cache;
+        private final Key key;
+        private final Supplier<Path> search;
+        private final long expiresAt;
+        private final LongOpenHashSet chunks = new LongOpenHashSet();
+        private volatile @Nullable AsyncPath leader;
+        private volatile boolean done = false;
+        private @Nullable Path result;
+        private boolean removed = false;
+
+        private Entry(LevelCache cache, Key key, Supplier<Path> search, long expiresAt) {
+            this.cache = cache;
+            this.key = key;
+            this.search = search;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Runs the search once, whichever path asks for it first.
+         */
+        private @Nullable Path get() {
+            synchronized (this) {
+                if (!this.done) {
+                    this.result = this.search.get();
+                    this.done = true;
+                } else {
+                    return this.result;
+                }
+            }
+
+            if (this.result != null) {
+                synchronized (this.cache) {
+                    if (!this.removed) {
+                        for (final Node node : this.result.nodes) {
+                            this.cache.index(this, ChunkPos.asLong(node.x >> 4, node.z >> 4));
+                        }
+                    }
+                }
+            }
+
+            return this.result;
+        }
+    }
+}
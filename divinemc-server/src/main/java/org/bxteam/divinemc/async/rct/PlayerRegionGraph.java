@@ -0,0 +1,383 @@
+package org.bxteam.divinemc.async.rct;
+
+import ca.spottedleaf.moonrise.common.util.CoordinateUtils;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import java.util.List;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistent graph of the player tick regions of a level.
+ *
+ * <p>Every player covers a square of chunks with a radius of the tick view distance, players whose
+ * squares overlap or are less than {@link #REGION_GAP_CHUNKS} chunks apart belong to the same region, so
+ * two regions never touch. Players are kept in a union-find forest and a spatial grid with cells as wide as
+ * that reach, so players of the same region are always in neighbouring cells. Each region
+ * counts how many of its players cover each of its chunks, which keeps its chunk set up to date as players
+ * move without rebuilding it.
+ *
+ * <p>Only regions that lost or moved a player have their connectivity recomputed, and only regions that
+ * actually split have their chunk sets rebuilt. Merges fold the smaller chunk set into the larger one.
+ * A change of the tick view distance rebuilds the whole graph.
+ */
+final class PlayerRegionGraph {
+    // chunks ticked by no region between any two regions, wider than what a block entity left to the regions reaches
+    static final int REGION_GAP_CHUNKS = 2;
+
+    private final Reference2ObjectOpenHashMap<ServerPlayer, Node> nodes = new Reference2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<ObjectArrayList<Node>> grid = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<Region> chunkOwners = new Long2ObjectOpenHashMap<>();
+    private final ReferenceOpenHashSet<Region> regions = new ReferenceOpenHashSet<>();
+    private int viewDistance = -1;
+    private long updateCount;
+    private long nextRegionId;
+
+    /**
+     * Brings the graph up to date with the current players and their positions.
+     */
+    void update(final List<ServerPlayer> players, final int tickViewDistance) {
+        if (tickViewDistance != this.viewDistance) {
+            this.nodes.clear();
+            this.grid.clear();
+            this.chunkOwners.clear();
+            this.regions.clear();
+            this.viewDistance = tickViewDistance;
+        }
+
+        final long update = ++this.updateCount;
+        final ObjectArrayList<Node> reset = new ObjectArrayList<>();
+        final ReferenceOpenHashSet<Region> dirty = new ReferenceOpenHashSet<>();
+
+        for (final ServerPlayer player : players) {
+            final ChunkPos pos = player.chunkPosition();
+            Node node = this.nodes.get(player);
+
+            if (node == null) {
+                node = new Node(pos.x, pos.z);
+                this.nodes.put(player, node);
+                this.gridAdd(node);
+                reset.add(node);
+            } else if (node.chunkX != pos.x || node.chunkZ != pos.z) {
+                this.gridRemove(node);
+                node.region.moveSquare(node.chunkX, node.chunkZ, pos.x, pos.z);
+                node.chunkX = pos.x;
+                node.chunkZ = pos.z;
+                this.gridAdd(node);
+                dirty.add(node.region);
+            }
+
+            node.lastUpdate = update;
+        }
+
+        for (final ObjectIterator<Node> iterator = this.nodes.values().iterator(); iterator.hasNext(); ) {
+            final Node node = iterator.next();
+            if (node.lastUpdate != update) {
+                iterator.remove();
+                this.gridRemove(node);
+                node.removed = true;
+                node.region.removeSquare(node.chunkX, node.chunkZ);
+                dirty.add(node.region);
+            }
+        }
+
+        if (reset.isEmpty() && dirty.isEmpty()) {
+            return;
+        }
+
+        // players of changed regions are unlinked and reconnected with their neighbours, regions they
+        // touch that did not change are merged in as a whole
+        for (final Region region : dirty) {
+            this.regions.remove(region);
+            for (final Node node : region.members) {
+                if (!node.removed) {
+                    reset.add(node);
+                }
+            }
+        }
+
+        for (final Node node : reset) {
+            node.parent = node;
+            node.rank = 0;
+        }
+
+        final ReferenceOpenHashSet<Region> absorbed = new ReferenceOpenHashSet<>();
+        final int reach = this.reach();
+        for (final Node node : reset) {
+            final int cellX = Math.floorDiv(node.chunkX, this.cellSize());
+            final int cellZ = Math.floorDiv(node.chunkZ, this.cellSize());
+
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    final ObjectArrayList<Node> cell = this.grid.get(CoordinateUtils.getChunkKey(cellX + dx, cellZ + dz));
+                    if (cell == null) {
+                        continue;
+                    }
+
+                    for (final Node other : cell) {
+                        if (other == node || Math.abs(other.chunkX - node.chunkX) > reach || Math.abs(other.chunkZ - node.chunkZ) > reach) {
+                            continue;
+                        }
+
+                        union(node, other);
+                        if (other.region != null && !dirty.contains(other.region)) {
+                            absorbed.add(other.region);
+                        }
+                    }
+                }
+            }
+        }
+
+        // a changed region split if its remaining players ended up under different roots
+        final ReferenceOpenHashSet<Region> split = new ReferenceOpenHashSet<>();
+        for (final Region region : dirty) {
+            Node root = null;
+            for (final Node node : region.members) {
+                if (node.removed) {
+                    continue;
+                }
+
+                final Node nodeRoot = find(node);
+                if (root == null) {
+                    root = nodeRoot;
+                } else if (root != nodeRoot) {
+                    split.add(region);
+                    break;
+                }
+            }
+        }
+
+        final Reference2ObjectOpenHashMap<Node, Group> groups = new Reference2ObjectOpenHashMap<>();
+        for (final Node node : reset) {
+            final Group group = groups.computeIfAbsent(find(node), root -> new Group());
+            group.members.add(node);
+            if (node.region == null) {
+                group.added.add(node);
+            } else {
+                group.regions.add(node.region);
+                group.rebuild |= split.contains(node.region);
+            }
+        }
+
+        for (final Region region : absorbed) {
+            this.regions.remove(region);
+            final Group group = groups.computeIfAbsent(find(region.members.get(0)), root -> new Group());
+            group.members.addAll(region.members);
+            group.regions.add(region);
+        }
+
+        for (final Region region : split) {
+            region.release();
+        }
+
+        for (final Group group : groups.values()) {
+            this.regions.add(group.build());
+        }
+    }
+
+    Region[] regions() {
+        return this.regions.toArray(new Region[0]);
+    }
+
+    @Nullable Region regionAt(final long chunkKey) {
+        return this.chunkOwners.get(chunkKey);
+    }
+
+    /**
+     * @return the largest distance in chunks between two players of the same region
+     */
+    private int reach() {
+        return 2 * this.viewDistance + REGION_GAP_CHUNKS;
+    }
+
+    private int cellSize() {
+        return this.reach();
+    }
+
+    private long cellKey(final Node node) {
+        return CoordinateUtils.getChunkKey(Math.floorDiv(node.chunkX, this.cellSize()), Math.floorDiv(node.chunkZ, this.cellSize()));
+    }
+
+    private void gridAdd(final Node node) {
+        this.grid.computeIfAbsent(this.cellKey(node), key -> new ObjectArrayList<>()).add(node);
+    }
+
+    private void gridRemove(final Node node) {
+        final long key = this.cellKey(node);
+        final ObjectArrayList<Node> cell = this.grid.get(key);
+        if (cell != null && cell.remove(node) && cell.isEmpty()) {
+            this.grid.remove(key);
+        }
+    }
+
+    private static Node find(Node node) {
+        while (node.parent != node) {
+            node.parent = node.parent.parent;
+            node = node.parent;
+        }
+        return node;
+    }
+
+    private static void union(final Node a, final Node b) {
+        final Node rootA = find(a);
+        final Node rootB = find(b);
+        if (rootA == rootB) {
+            return;
+        }
+
+        if (rootA.rank < rootB.rank) {
+            rootA.parent = rootB;
+        } else if (rootA.rank > rootB.rank) {
+            rootB.parent = rootA;
+        } else {
+            rootB.parent = rootA;
+            rootA.rank++;
+        }
+    }
+
+    private static final class Node {
+        private int chunkX;
+        private int chunkZ;
+        private Node parent = this;
+        private int rank;
+        private long lastUpdate;
+        private boolean removed;
+        private Region region;
+
+        private Node(final int chunkX, final int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+    }
+
+    private final class Group {
+        private final ReferenceOpenHashSet<Region> regions = new ReferenceOpenHashSet<>();
+        private final ObjectArrayList<Node> members = new ObjectArrayList<>();
+        private final ObjectArrayList<Node> added = new ObjectArrayList<>();
+        private boolean rebuild;
+
+        private Region build() {
+            final Region result;
+            if (this.rebuild) {
+                for (final Region region : this.regions) {
+                    region.release();
+                }
+
+                result = new Region();
+                for (final Node node : this.members) {
+                    result.addSquare(node.chunkX, node.chunkZ);
+                }
+            } else {
+                Region base = null;
+                for (final Region region : this.regions) {
+                    if (base == null || region.chunkRefs.size() > base.chunkRefs.size()) {
+                        base = region;
+                    }
+                }
+
+                result = base != null ? base : new Region();
+                for (final Region region : this.regions) {
+                    if (region != result) {
+                        result.absorb(region);
+                    }
+                }
+                for (final Node node : this.added) {
+                    result.addSquare(node.chunkX, node.chunkZ);
+                }
+            }
+
+            result.members = this.members;
+            for (final Node node : this.members) {
+                node.region = result;
+            }
+            return result;
+        }
+    }
+
+    final class Region {
+        private final Long2IntOpenHashMap chunkRefs = new Long2IntOpenHashMap();
+        private ObjectArrayList<Node> members = new ObjectArrayList<>();
+        final long id = PlayerRegionGraph.this.nextRegionId++;
+        int index;
+        // average tick time per chunk of this region, 0 until it was ticked once
+        long nanosPerChunk;
+
+        LongSet chunks() {
+            return this.chunkRefs.keySet();
+        }
+
+        private void addChunk(final long key) {
+            if (this.chunkRefs.addTo(key, 1) == 0) {
+                PlayerRegionGraph.this.chunkOwners.put(key, this);
+            }
+        }
+
+        private void removeChunk(final long key) {
+            if (this.chunkRefs.addTo(key, -1) == 1) {
+                this.chunkRefs.remove(key);
+                PlayerRegionGraph.this.chunkOwners.remove(key, this);
+            }
+        }
+
+        private void addSquare(final int chunkX, final int chunkZ) {
+            final int radius = PlayerRegionGraph.this.viewDistance;
+            for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+                for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                    this.addChunk(CoordinateUtils.getChunkKey(x, z));
+                }
+            }
+        }
+
+        private void removeSquare(final int chunkX, final int chunkZ) {
+            final int radius = PlayerRegionGraph.this.viewDistance;
+            for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+                for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                    this.removeChunk(CoordinateUtils.getChunkKey(x, z));
+                }
+            }
+        }
+
+        /**
+         * Moves a square, touching only the chunks it leaves and enters.
+         */
+        private void moveSquare(final int fromX, final int fromZ, final int toX, final int toZ) {
+            final int radius = PlayerRegionGraph.this.viewDistance;
+            for (int x = toX - radius; x <= toX + radius; x++) {
+                for (int z = toZ - radius; z <= toZ + radius; z++) {
+                    if (Math.abs(x - fromX) > radius || Math.abs(z - fromZ) > radius) {
+                        this.addChunk(CoordinateUtils.getChunkKey(x, z));
+                    }
+                }
+            }
+            for (int x = fromX - radius; x <= fromX + radius; x++) {
+                for (int z = fromZ - radius; z <= fromZ + radius; z++) {
+                    if (Math.abs(x - toX) > radius || Math.abs(z - toZ) > radius) {
+                        this.removeChunk(CoordinateUtils.getChunkKey(x, z));
+                    }
+                }
+            }
+        }
+
+        private void absorb(final Region other) {
+            for (final Long2IntMap.Entry entry : other.chunkRefs.long2IntEntrySet()) {
+                this.chunkRefs.addTo(entry.getLongKey(), entry.getIntValue());
+                PlayerRegionGraph.this.chunkOwners.put(entry.getLongKey(), this);
+            }
+            other.chunkRefs.clear();
+        }
+
+        private void release() {
+            for (final long key : this.chunkRefs.keySet()) {
+                PlayerRegionGraph.this.chunkOwners.remove(key, this);
+            }
+            this.chunkRefs.clear();
+        }
+    }
+}
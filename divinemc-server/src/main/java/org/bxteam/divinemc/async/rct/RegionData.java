@@ -1,11 +1,12 @@
 package org.bxteam.divinemc.async.rct;
 
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.block.entity.TickingBlockEntity;
 
-import java.util.Set;
+import java.util.List;
 
-record RegionData(LongOpenHashSet chunks, Set<Entity> entities) {
+record RegionData(PlayerRegionGraph.Region source, LongSet chunks, List<Entity> entities, List<TickingBlockEntity> blockEntities) {
     public boolean isEmpty() {
         return chunks.isEmpty();
     }
@@ -0,0 +1,337 @@
+package org.bxteam.divinemc.async.rct;
+
+import ca.spottedleaf.moonrise.common.util.CoordinateUtils;
+import com.mojang.logging.LogUtils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.block.entity.TickingBlockEntity;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.slf4j.Logger;
+
+/**
+ * The region tasks of one tick of a level, drained by the region ticking threads.
+ *
+ * <p>Regions start longest first, by the tick time per chunk they took on previous ticks. A region
+ * estimated to take longer than an even share of the whole tick is split into square tiles, ticked in
+ * four passes by the parity of their tile coordinates, so the tiles of a pass are always separated by
+ * a ring of tiles that are not ticking. While it waits for a pass, the thread of a split region runs tiles
+ * of any region. Threads without anything to run block until a task is queued or done.
+ *
+ * <p>Block entities are ticked after the entities of their tile, like the world ticks them after all entities.
+ * Only block entities that reach no further than a block (containers, neighbor updates) are handed to the
+ * regions, see {@link RegionizedChunkTicking}, so the ring between tiles and the gap of
+ * {@link PlayerRegionGraph#REGION_GAP_CHUNKS} chunks between regions keep them from touching what another
+ * thread is ticking.
+ *
+ * <p>This is not a {@link java.util.concurrent.ForkJoinPool}: chunks and entities have to be ticked on
+ * {@link ca.spottedleaf.moonrise.common.util.TickThread}s, which fork-join workers cannot be, so the
+ * threads of the region executor share two longest-first queues instead and tiles are taken before regions.
+ */
+final class RegionTickBatch {
+    private static final Logger LOGGER = LogUtils.getLogger();
+    private static final Comparator<Task> LONGEST_FIRST = Comparator.comparingLong((Task task) -> task.cost).reversed();
+
+    private final PriorityBlockingQueue<Task> regionTasks = new PriorityBlockingQueue<>(16, LONGEST_FIRST);
+    private final PriorityBlockingQueue<Task> tileTasks = new PriorityBlockingQueue<>(16, LONGEST_FIRST);
+    private final AtomicInteger remaining = new AtomicInteger();
+    // bumped whenever a task is queued or done, idle threads wait for it to change
+    private final Object signal = new Object();
+    private volatile long signals;
+    private final ConcurrentLinkedQueue<LongOpenHashSet> tickedChunks = new ConcurrentLinkedQueue<>();
+    private final RegionData[] regions;
+    private final long[] nanosPerChunk;
+    private final AtomicLongArray regionNanos;
+    // written by the thread running the region's task, read once the batch is drained
+    private final long[] wallNanos;
+    private final int[] loadedChunks;
+    private final int[] blockEntities;
+    private final long[] chunkXSum;
+    private final long[] chunkZSum;
+    private final int tileSize;
+    private final LongFunction<LevelChunk> chunkLookup;
+    private final Consumer<LevelChunk> chunkTicker;
+    private final Consumer<Entity> entityTicker;
+    private final Consumer<TickingBlockEntity> blockEntityTicker;
+
+    RegionTickBatch(final RegionData[] regions, final long defaultNanosPerChunk, final int threads, final int tileSize,
+                    final LongFunction<LevelChunk> chunkLookup, final Consumer<LevelChunk> chunkTicker, final Consumer<Entity> entityTicker,
+                    final Consumer<TickingBlockEntity> blockEntityTicker) {
+        this.regions = regions;
+        this.nanosPerChunk = new long[regions.length];
+        this.regionNanos = new AtomicLongArray(regions.length);
+        this.wallNanos = new long[regions.length];
+        this.loadedChunks = new int[regions.length];
+        this.blockEntities = new int[regions.length];
+        this.chunkXSum = new long[regions.length];
+        this.chunkZSum = new long[regions.length];
+        this.tileSize = tileSize;
+        this.chunkLookup = chunkLookup;
+        this.chunkTicker = chunkTicker;
+        this.entityTicker = entityTicker;
+        this.blockEntityTicker = blockEntityTicker;
+
+        final long[] costs = new long[regions.length];
+        long total = 0L;
+        for (int i = 0; i < regions.length; i++) {
+            final long perChunk = regions[i].source().nanosPerChunk;
+            this.nanosPerChunk[i] = perChunk != 0L ? perChunk : Math.max(1L, defaultNanosPerChunk);
+            costs[i] = this.nanosPerChunk[i] * Math.max(1, regions[i].chunks().size());
+            total += costs[i];
+        }
+
+        this.remaining.set(regions.length);
+        for (int i = 0; i < regions.length; i++) {
+            final int index = i;
+            final boolean split = tileSize > 0 && costs[i] > total / threads && regions[i].chunks().size() > 2 * tileSize * tileSize;
+            this.regionTasks.add(new Task(costs[i], () -> {
+                final long start = System.nanoTime();
+                try {
+                    if (split) {
+                        this.tickSplit(index);
+                    } else {
+                        this.tickWhole(index);
+                    }
+                } finally {
+                    this.wallNanos[index] = System.nanoTime() - start;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Runs tasks of this batch until all of them are done.
+     */
+    void drain() {
+        while (true) {
+            final long observed = this.signals;
+            Task task = this.tileTasks.poll();
+            if (task == null) {
+                task = this.regionTasks.poll();
+            }
+
+            if (task != null) {
+                task.run();
+            } else if (this.remaining.get() == 0) {
+                return;
+            } else {
+                this.awaitSignal(observed);
+            }
+        }
+    }
+
+    private void signal() {
+        synchronized (this.signal) {
+            this.signals++;
+            this.signal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a task was queued or done since {@code observed} was read, read it before polling the queues.
+     */
+    private void awaitSignal(final long observed) {
+        boolean interrupted = false;
+        synchronized (this.signal) {
+            while (this.signals == observed) {
+                try {
+                    this.signal.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Collects the chunks that were ticked and records the tick time of every region for the next tick's estimates.
+     *
+     * @return the average tick time per chunk over all regions, or 0 if nothing was ticked
+     */
+    long finish(final LongOpenHashSet ticked) {
+        for (LongOpenHashSet chunks; (chunks = this.tickedChunks.poll()) != null; ) {
+            ticked.addAll(chunks);
+        }
+
+        long totalNanos = 0L;
+        long totalChunks = 0L;
+        for (int i = 0; i < this.regions.length; i++) {
+            final PlayerRegionGraph.Region region = this.regions[i].source();
+            final int chunks = Math.max(1, this.regions[i].chunks().size());
+            final long sample = this.regionNanos.get(i) / chunks;
+
+            region.nanosPerChunk = region.nanosPerChunk == 0L ? sample : (region.nanosPerChunk * 3 + sample) / 4;
+            totalNanos += this.regionNanos.get(i);
+            totalChunks += chunks;
+        }
+
+        return totalChunks == 0L ? 0L : totalNanos / totalChunks;
+    }
+
+    RegionTickHistory.RegionSample[] samples() {
+        final RegionTickHistory.RegionSample[] samples = new RegionTickHistory.RegionSample[this.regions.length];
+        for (int i = 0; i < this.regions.length; i++) {
+            final int chunks = Math.max(1, this.loadedChunks[i]);
+            samples[i] = new RegionTickHistory.RegionSample(
+                this.regions[i].source().id, this.regionNanos.get(i), this.wallNanos[i], this.loadedChunks[i],
+                this.regions[i].entities().size(), this.blockEntities[i],
+                (int) Math.floorDiv(this.chunkXSum[i] * 16, chunks) + 8, (int) Math.floorDiv(this.chunkZSum[i] * 16, chunks) + 8
+            );
+        }
+
+        return samples;
+    }
+
+    private void account(final int index, final long key, final LevelChunk chunk) {
+        this.loadedChunks[index]++;
+        this.blockEntities[index] += chunk.getBlockEntities().size();
+        this.chunkXSum[index] += CoordinateUtils.getChunkX(key);
+        this.chunkZSum[index] += CoordinateUtils.getChunkZ(key);
+    }
+
+    private void tickWhole(final int index) {
+        final long start = System.nanoTime();
+        final RegionData region = this.regions[index];
+        final Tile tile = new Tile();
+
+        for (final long key : region.chunks()) {
+            final LevelChunk chunk = this.chunkLookup.apply(key);
+            if (chunk != null) {
+                tile.add(key, chunk);
+                this.account(index, key, chunk);
+            }
+        }
+        tile.entities.addAll(region.entities());
+        tile.blockEntities.addAll(region.blockEntities());
+
+        this.tickTile(tile);
+        this.regionNanos.addAndGet(index, System.nanoTime() - start);
+    }
+
+    private void tickSplit(final int index) {
+        final long start = System.nanoTime();
+        final RegionData region = this.regions[index];
+        final Long2ObjectOpenHashMap<Tile> tiles = new Long2ObjectOpenHashMap<>();
+
+        for (final long key : region.chunks()) {
+            final LevelChunk chunk = this.chunkLookup.apply(key);
+            if (chunk != null) {
+                this.account(index, key, chunk);
+                tiles.computeIfAbsent(this.tileKey(CoordinateUtils.getChunkX(key), CoordinateUtils.getChunkZ(key)), tileKey -> new Tile()).add(key, chunk);
+            }
+        }
+        for (final Entity entity : region.entities()) {
+            tiles.computeIfAbsent(this.tileKey(entity.chunkPosition().x, entity.chunkPosition().z), tileKey -> new Tile()).entities.add(entity);
+        }
+        for (final TickingBlockEntity blockEntity : region.blockEntities()) {
+            final BlockPos pos = blockEntity.getPos();
+            tiles.computeIfAbsent(this.tileKey(pos.getX() >> 4, pos.getZ() >> 4), tileKey -> new Tile()).blockEntities.add(blockEntity);
+        }
+
+        @SuppressWarnings("unchecked")
+        final ObjectArrayList<Tile>[] passes = new ObjectArrayList[4];
+        for (int pass = 0; pass < passes.length; pass++) {
+            passes[pass] = new ObjectArrayList<>();
+        }
+        for (final Long2ObjectMap.Entry<Tile> entry : tiles.long2ObjectEntrySet()) {
+            final int tileX = CoordinateUtils.getChunkX(entry.getLongKey());
+            final int tileZ = CoordinateUtils.getChunkZ(entry.getLongKey());
+            passes[(tileX & 1) | ((tileZ & 1) << 1)].add(entry.getValue());
+        }
+        this.regionNanos.addAndGet(index, System.nanoTime() - start);
+
+        for (final ObjectArrayList<Tile> pass : passes) {
+            final AtomicInteger pending = new AtomicInteger(pass.size());
+            for (final Tile tile : pass) {
+                this.remaining.incrementAndGet();
+                this.tileTasks.add(new Task(this.nanosPerChunk[index] * Math.max(1, tile.chunks.size()), () -> {
+                    final long tileStart = System.nanoTime();
+                    try {
+                        this.tickTile(tile);
+                    } finally {
+                        this.regionNanos.addAndGet(index, System.nanoTime() - tileStart);
+                        pending.decrementAndGet();
+                    }
+                }));
+            }
+            this.signal();
+
+            while (pending.get() > 0) {
+                final long observed = this.signals;
+                final Task task = this.tileTasks.poll();
+                if (task != null) {
+                    task.run();
+                } else if (pending.get() > 0) {
+                    this.awaitSignal(observed);
+                }
+            }
+        }
+    }
+
+    private long tileKey(final int chunkX, final int chunkZ) {
+        return CoordinateUtils.getChunkKey(Math.floorDiv(chunkX, this.tileSize), Math.floorDiv(chunkZ, this.tileSize));
+    }
+
+    private void tickTile(final Tile tile) {
+        for (final LevelChunk chunk : tile.chunks) {
+            this.chunkTicker.accept(chunk);
+        }
+        for (final Entity entity : tile.entities) {
+            this.entityTicker.accept(entity);
+        }
+        for (final TickingBlockEntity blockEntity : tile.blockEntities) {
+            this.blockEntityTicker.accept(blockEntity);
+        }
+
+        // chunks of a tile that failed are not recorded, they are ticked again after the regions
+        this.tickedChunks.add(tile.keys);
+    }
+
+    private final class Task implements Runnable {
+        private final long cost;
+        private final Runnable body;
+
+        private Task(final long cost, final Runnable body) {
+            this.cost = cost;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.body.run();
+            } catch (Throwable throwable) {
+                LOGGER.error("Error during region chunk ticking", throwable);
+            } finally {
+                RegionTickBatch.this.remaining.decrementAndGet();
+                RegionTickBatch.this.signal();
+            }
+        }
+    }
+
+    private static final class Tile {
+        private final ObjectArrayList<LevelChunk> chunks = new ObjectArrayList<>();
+        private final LongOpenHashSet keys = new LongOpenHashSet();
+        private final ObjectArrayList<Entity> entities = new ObjectArrayList<>();
+        private final ObjectArrayList<TickingBlockEntity> blockEntities = new ObjectArrayList<>();
+
+        private void add(final long key, final LevelChunk chunk) {
+            this.chunks.add(chunk);
+            this.keys.add(key);
+        }
+    }
+}
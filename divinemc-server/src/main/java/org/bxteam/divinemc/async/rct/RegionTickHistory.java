@@ -0,0 +1,59 @@
+package org.bxteam.divinemc.async.rct;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Ring buffer of the per-region tick statistics of the last ticks of a level.
+ *
+ * <p>Ticks are recorded by the thread finishing the level's region tick and read from any thread without
+ * locking: every slot holds an immutable sample tagged with its sequence number, so a reader racing the
+ * writer skips the slots that were overwritten while it was reading instead of seeing torn data.
+ */
+public final class RegionTickHistory {
+    public static final int CAPACITY = 100;
+
+    private final AtomicReferenceArray<TickSample> samples = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong written = new AtomicLong();
+
+    void record(final RegionSample[] regions) {
+        final long sequence = this.written.get();
+        this.samples.set((int) (sequence % CAPACITY), new TickSample(sequence, System.nanoTime(), regions));
+        this.written.set(sequence + 1);
+    }
+
+    /**
+     * @return the recorded ticks, oldest first
+     */
+    public @NotNull List<TickSample> snapshot() {
+        final long end = this.written.get();
+        final long start = Math.max(0L, end - CAPACITY);
+        final List<TickSample> result = new ArrayList<>((int) (end - start));
+
+        for (long sequence = start; sequence < end; sequence++) {
+            final TickSample sample = this.samples.get((int) (sequence % CAPACITY));
+            if (sample != null && sample.sequence() == sequence) {
+                result.add(sample);
+            }
+        }
+
+        return result;
+    }
+
+    public record TickSample(long sequence, long recordedAt, RegionSample[] regions) {
+    }
+
+    /**
+     * @param regionId     identifies a region for as long as its players do not change regions
+     * @param busyNanos    time spent ticking the region summed over all threads
+     * @param wallNanos    time from the start to the end of the region's tick
+     * @param centerBlockX x of the centroid of the region's loaded chunks
+     * @param centerBlockZ z of the centroid of the region's loaded chunks
+     */
+    public record RegionSample(long regionId, long busyNanos, long wallNanos, int chunks, int entities, int blockEntities,
+                               int centerBlockX, int centerBlockZ) {
+    }
+}
@@ -1,120 +1,125 @@
 package org.bxteam.divinemc.async.rct;
 
-import ca.spottedleaf.moonrise.common.list.IteratorSafeOrderedReferenceSet;
 import ca.spottedleaf.moonrise.common.util.CoordinateUtils;
 import ca.spottedleaf.moonrise.common.util.TickThread;
-import ca.spottedleaf.moonrise.patches.chunk_system.player.RegionizedPlayerChunkLoader.ViewDistances;
+import ca.spottedleaf.moonrise.patches.chunk_system.level.entity.ChunkEntitySlices;
+import ca.spottedleaf.moonrise.patches.chunk_system.level.entity.EntityLookup;
 import com.mojang.datafixers.DataFixer;
-import com.mojang.logging.LogUtils;
 import io.papermc.paper.entity.activation.ActivationRange;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import java.util.ArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.FullChunkStatus;
 import net.minecraft.server.level.ServerChunkCache;
 import net.minecraft.server.level.ServerLevel;
-import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.entity.Entity;
-import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.GameRules;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+import net.minecraft.world.level.block.entity.TickingBlockEntity;
 import net.minecraft.world.level.chunk.ChunkGenerator;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.entity.ChunkStatusUpdateListener;
 import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplateManager;
 import net.minecraft.world.level.storage.DimensionDataStorage;
 import net.minecraft.world.level.storage.LevelStorageSource;
+import org.bxteam.divinemc.async.budget.BudgetedThreadPoolExecutor;
+import org.bxteam.divinemc.async.budget.CpuBudget;
 import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.util.BlockEntityTickersList;
 import org.bxteam.divinemc.util.NamedAgnosticThreadFactory;
 import org.jetbrains.annotations.NotNull;
-import org.slf4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 public final class RegionizedChunkTicking extends ServerChunkCache {
-    private static final Logger LOGGER = LogUtils.getLogger();
-    public static final Executor REGION_EXECUTOR = Executors.newFixedThreadPool(DivineConfig.AsyncCategory.regionizedChunkTickingExecutorThreadCount,
+    public static final BudgetedThreadPoolExecutor REGION_EXECUTOR = new BudgetedThreadPoolExecutor(
+        DivineConfig.AsyncCategory.regionizedChunkTickingExecutorThreadCount, DivineConfig.AsyncCategory.regionizedChunkTickingExecutorThreadCount,
+        0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
         new NamedAgnosticThreadFactory<>("Region Ticking", TickThread::new, DivineConfig.AsyncCategory.regionizedChunkTickingExecutorThreadPriority)
     );
 
+    static {
+        CpuBudget.register(CpuBudget.Pool.REGION_TICKING, REGION_EXECUTOR, DivineConfig.AsyncCategory.regionizedChunkTickingExecutorThreadCount);
+    }
+
+    // block entities that affect entities or blocks chunks away, those stay on the world thread
+    private static final ReferenceOpenHashSet<BlockEntityType<?>> FAR_REACHING = new ReferenceOpenHashSet<>(List.of(
+        BlockEntityType.BEACON, // effects up to 50 blocks
+        BlockEntityType.CONDUIT, // effects up to 96 blocks, attacks up to 8
+        BlockEntityType.SCULK_SENSOR, // vibrations up to 16 blocks
+        BlockEntityType.CALIBRATED_SCULK_SENSOR,
+        BlockEntityType.SCULK_SHRIEKER, // warden spawning and darkness
+        BlockEntityType.SCULK_CATALYST,
+        BlockEntityType.MOB_SPAWNER, // player range and spawning
+        BlockEntityType.TRIAL_SPAWNER,
+        BlockEntityType.VAULT,
+        BlockEntityType.BELL, // highlights raiders up to 48 blocks
+        BlockEntityType.CREAKING_HEART
+    ));
+
+    private final PlayerRegionGraph regionGraph = new PlayerRegionGraph();
+    // average tick time per chunk of the last tick, used for regions that were not ticked before
+    private volatile long nanosPerChunk;
+    private final RegionTickHistory tickHistory = new RegionTickHistory();
+
     public RegionizedChunkTicking(final ServerLevel level, final LevelStorageSource.LevelStorageAccess levelStorageAccess, final DataFixer fixerUpper, final StructureTemplateManager structureManager, final Executor dispatcher, final ChunkGenerator generator, final int viewDistance, final int simulationDistance, final boolean sync, final ChunkStatusUpdateListener chunkStatusListener, final Supplier<DimensionDataStorage> overworldDataStorage) {
         super(level, levelStorageAccess, fixerUpper, structureManager, dispatcher, generator, viewDistance, simulationDistance, sync, chunkStatusListener, overworldDataStorage);
     }
 
+    public RegionTickHistory getTickHistory() {
+        return tickHistory;
+    }
+
     @Override
     protected void iterateTickingChunksFaster(final @NotNull CompletableFuture<Void> spawns) {
         final ServerLevel world = this.level;
         final int randomTickSpeed = world.getGameRules().getInt(GameRules.RULE_RANDOMTICKING);
         final LevelChunk[] raw = world.moonrise$getEntityTickingChunks().toArray(new LevelChunk[0]);
 
-        final TickPair tickPair = computePlayerRegionsParallel();
+        final TickPair tickPair = computePlayerRegions(raw);
         final RegionData[] regions = tickPair.regions();
 
         ActivationRange.activateEntities(level); // Paper - EAR
-        ObjectArrayList<CompletableFuture<LongOpenHashSet>> ticked = new ObjectArrayList<>(regions.length);
+        ObjectArrayList<RegionData> nonEmpty = new ObjectArrayList<>(regions.length);
 
         for (final RegionData region : regions) {
             if (region == null || region.isEmpty()) {
                 continue;
             }
 
-            ticked.add(tick(region, randomTickSpeed));
+            nonEmpty.add(region);
         }
 
-        CompletableFuture.runAsync(() -> {
-            finishTicking(ticked, randomTickSpeed, raw, tickPair);
-            spawns.join();
-        }, REGION_EXECUTOR).join();
-    }
-
-    private CompletableFuture<LongOpenHashSet> tick(RegionData region, int randomTickSpeed) {
-        return CompletableFuture.supplyAsync(() -> {
-            ObjectArrayList<LevelChunk> regionChunks = new ObjectArrayList<>(region.chunks().size());
-            LongOpenHashSet regionChunksIDs = new LongOpenHashSet(region.chunks().size());
-            for (long key : region.chunks()) {
-                LevelChunk chunk = fullChunks.get(key);
-                if (chunk != null) {
-                    regionChunks.add(chunk);
-                    regionChunksIDs.add(key);
-                }
-            }
+        final int threads = REGION_EXECUTOR.threads();
+        final RegionTickBatch batch = new RegionTickBatch(nonEmpty.toArray(new RegionData[0]), nanosPerChunk, threads,
+            DivineConfig.AsyncCategory.regionizedChunkTickingSplitTileSize, fullChunks::get, chunk -> level.tickChunk(chunk, randomTickSpeed), this::tickEntity,
+            this::tickBlockEntity);
 
-            for (LevelChunk chunk : regionChunks) {
-                level.tickChunk(chunk, randomTickSpeed);
-            }
-            for (Entity entity : region.entities()) {
-                tickEntity(entity);
-            }
+        final CompletableFuture<?>[] drainers = new CompletableFuture[nonEmpty.isEmpty() ? 0 : threads];
+        for (int i = 0; i < drainers.length; i++) {
+            drainers[i] = CompletableFuture.runAsync(batch::drain, REGION_EXECUTOR);
+        }
 
-            return regionChunksIDs;
-        }, REGION_EXECUTOR);
+        CompletableFuture.allOf(drainers).thenRunAsync(() -> {
+            finishTicking(batch, randomTickSpeed, raw, tickPair);
+            spawns.join();
+        }, REGION_EXECUTOR).join();
     }
 
-    private void finishTicking(final ObjectArrayList<CompletableFuture<LongOpenHashSet>> ticked, final int randomTickSpeed, final LevelChunk[] raw, final TickPair tickPair) {
-        try {
-            CompletableFuture.allOf(ticked.toArray(new CompletableFuture[0])).join();
-        } catch (CompletionException ex) {
-            LOGGER.error("Error during region chunk ticking", ex.getCause());
-        }
-
+    private void finishTicking(final RegionTickBatch batch, final int randomTickSpeed, final LevelChunk[] raw, final TickPair tickPair) {
         LongOpenHashSet tickedChunkKeys = new LongOpenHashSet(raw.length);
-
-        for (CompletableFuture<LongOpenHashSet> future : ticked) {
-            if (!future.isCompletedExceptionally()) {
-                try {
-                    LongOpenHashSet regionChunks = future.join();
-                    tickedChunkKeys.addAll(regionChunks);
-                } catch (Exception e) {
-                    LOGGER.error("Exception in region ticking future", e);
-                }
-            }
+        final long averageNanosPerChunk = batch.finish(tickedChunkKeys);
+        if (averageNanosPerChunk != 0L) {
+            nanosPerChunk = averageNanosPerChunk;
         }
+        tickHistory.record(batch.samples());
 
         for (LevelChunk chunk : raw) {
             if (!tickedChunkKeys.contains(chunk.coordinateKey)) {
@@ -127,101 +132,85 @@ public final class RegionizedChunkTicking extends ServerChunkCache {
         }
     }
 
-    private TickPair computePlayerRegionsParallel() {
+    private TickPair computePlayerRegions(final LevelChunk[] raw) {
         int tickViewDistance = level.moonrise$getViewDistanceHolder().getViewDistances().tickViewDistance();
-        List<ServerPlayer> players = new ArrayList<>(level.players());
-        int max = maxChunksForViewDistance();
-
-        List<LongOpenHashSet> playerChunkSets = players.parallelStream()
-            .map(player -> {
-                ChunkPos playerChunk = player.chunkPosition();
-                int px = playerChunk.x;
-                int pz = playerChunk.z;
-                LongOpenHashSet chunkKeys = new LongOpenHashSet(max);
-                for (int dx = -tickViewDistance; dx <= tickViewDistance; dx++) {
-                    for (int dz = -tickViewDistance; dz <= tickViewDistance; dz++) {
-                        long key = CoordinateUtils.getChunkKey(px + dx, pz + dz);
-                        chunkKeys.add(key);
-                    }
-                }
-                return chunkKeys;
-            }).toList();
-
-        List<LongOpenHashSet> mergedRegions = new ArrayList<>();
-        boolean[] merged = new boolean[playerChunkSets.size()];
-
-        for (int i = 0; i < playerChunkSets.size(); i++) {
-            if (merged[i]) continue;
-
-            LongOpenHashSet region = new LongOpenHashSet(playerChunkSets.get(i));
-            merged[i] = true;
-
-            boolean madeChanges;
-            do {
-                madeChanges = false;
-                for (int j = i + 1; j < playerChunkSets.size(); j++) {
-                    if (merged[j]) continue;
-
-                    LongOpenHashSet set = playerChunkSets.get(j);
-
-                    boolean hasIntersection = false;
-                    LongIterator iter = set.iterator();
-                    while (iter.hasNext()) {
-                        if (region.contains(iter.nextLong())) {
-                            hasIntersection = true;
-                            break;
-                        }
-                    }
-
-                    if (hasIntersection) {
-                        region.addAll(set);
-                        merged[j] = true;
-                        madeChanges = true;
-                    }
-                }
-            } while (madeChanges);
-
-            mergedRegions.add(region);
+        regionGraph.update(level.players(), tickViewDistance);
+
+        final EntityLookup entityLookup = level.moonrise$getEntityLookup();
+        PlayerRegionGraph.Region[] graphRegions = regionGraph.regions();
+        RegionData[] regions = new RegionData[graphRegions.length];
+        for (int i = 0; i < graphRegions.length; i++) {
+            graphRegions[i].index = i;
+            final List<Entity> entities = new ObjectArrayList<>();
+            for (final long key : graphRegions[i].chunks()) {
+                collectTickingEntities(entityLookup.getChunk(CoordinateUtils.getChunkX(key), CoordinateUtils.getChunkZ(key)), entities);
+            }
+            regions[i] = new RegionData(graphRegions[i], graphRegions[i].chunks(), entities, new ObjectArrayList<>());
         }
 
-        ObjectArrayList<RegionData> regions = new ObjectArrayList<>();
-        Long2IntOpenHashMap chunkToRegion = new Long2IntOpenHashMap(max * mergedRegions.size());
-        chunkToRegion.defaultReturnValue(-1);
-        for (int i = 0; i < mergedRegions.size(); i++) {
-            regions.add(new RegionData(mergedRegions.get(i), new ObjectOpenHashSet<>()));
-            for (long key : mergedRegions.get(i)) {
-                chunkToRegion.put(key, i);
+        // entity ticking chunks no player region covers, like force loaded ones, are left to the end of the tick
+        final List<Entity> firstTick = new ObjectArrayList<>();
+        for (final LevelChunk chunk : raw) {
+            if (regionGraph.regionAt(chunk.coordinateKey) == null) {
+                collectTickingEntities(entityLookup.getChunk(CoordinateUtils.getChunkX(chunk.coordinateKey), CoordinateUtils.getChunkZ(chunk.coordinateKey)), firstTick);
             }
         }
 
-        final Set<Entity> firstTick = new ObjectOpenHashSet<>();
-
-        synchronized (getEntityTickList().entities) {
-            final IteratorSafeOrderedReferenceSet.Iterator<Entity> iterator = getEntityTickList().entities.iterator();
-            try {
-                while (iterator.hasNext()) {
-                    Entity entity = iterator.next();
-                    long chunkKey = entity.chunkPosition().longKey;
-                    int regionIndex = chunkToRegion.get(chunkKey);
-                    if (regionIndex != -1) {
-                        regions.get(regionIndex).entities().add(entity);
-                    } else {
-                        firstTick.add(entity);
-                    }
-                }
-            } finally {
-                iterator.finishedIterating();
+        assignBlockEntities(regions);
+
+        return new TickPair(regions, firstTick);
+    }
+
+    /**
+     * Collects the entities of a chunk that are in the world's entity tick list, which are the ones in entity ticking
+     * chunks and players, without going through the tick list itself.
+     */
+    private static void collectTickingEntities(final @Nullable ChunkEntitySlices slices, final List<Entity> into) {
+        if (slices == null) {
+            return;
+        }
+
+        for (final Entity entity : slices.getAllEntities()) {
+            if (entity.isAlwaysTicking() || entity.moonrise$getChunkStatus() == FullChunkStatus.ENTITY_TICKING) {
+                into.add(entity);
             }
         }
+    }
+
+    private void assignBlockEntities(final RegionData[] regions) {
+        // without players the world stops calling tickBlockEntities, which would leave the pending tickers behind
+        if (regions.length == 0) {
+            return;
+        }
+
+        // tickers added while the regions tick, by them or by chunk loads, go to the pending list instead of the one being partitioned
+        level.startTickingBlockEntities();
+        if (!DivineConfig.AsyncCategory.regionizedChunkTickingBlockEntities || !level.tickRateManager().runsNormally()) {
+            return;
+        }
+
+        final BlockEntityTickersList tickers = level.blockEntityTickers;
+        for (int i = 0; i < tickers.size(); i++) {
+            final TickingBlockEntity ticker = tickers.get(i);
+            final BlockPos pos = ticker.getPos();
+            if (ticker.isRemoved() || pos == null) {
+                continue;
+            }
 
-        return new TickPair(regions.toArray(new RegionData[0]), firstTick);
+            final long chunkKey = CoordinateUtils.getChunkKey(pos);
+            PlayerRegionGraph.Region region = regionGraph.regionAt(chunkKey);
+            if (region != null && !isFarReaching(fullChunks.get(chunkKey), pos)) {
+                regions[region.index].blockEntities().add(ticker);
+                // the world skips it in tickBlockEntities, and only removes it from the list if it was removed meanwhile
+                level.regionTickedBlockEntities.set(i);
+            }
+        }
     }
 
-    // Should be max safe estimate of ticking chunks in a region
-    private int maxChunksForViewDistance() {
-        ViewDistances distances = level.moonrise$getViewDistanceHolder().getViewDistances();
-        int diameter = 2 * distances.tickViewDistance() + 1;
-        return diameter * diameter;
+    private static boolean isFarReaching(final @Nullable LevelChunk chunk, final BlockPos pos) {
+        final BlockEntity blockEntity = chunk == null ? null : chunk.getBlockEntities().get(pos);
+        // unknown tickers are kept on the world thread as well
+        return blockEntity == null || FAR_REACHING.contains(blockEntity.getType());
     }
 
     private void tickEntity(Entity entity) {
@@ -240,4 +229,10 @@ public final class RegionizedChunkTicking extends ServerChunkCache {
             level.guardEntityTick(level::tickNonPassenger, entity);
         }
     }
+
+    private void tickBlockEntity(TickingBlockEntity ticker) {
+        if (!ticker.isRemoved() && level.shouldTickBlocksAt(ticker.getPos())) {
+            ticker.tick();
+        }
+    }
 }
@@ -2,6 +2,6 @@ package org.bxteam.divinemc.async.rct;
 
 import net.minecraft.world.entity.Entity;
 
-import java.util.Set;
+import java.util.List;
 
-record TickPair(RegionData[] regions, Set<Entity> entities) { }
+record TickPair(RegionData[] regions, List<Entity> entities) { }
@@ -5,31 +5,56 @@ import ca.spottedleaf.moonrise.common.misc.NearbyPlayers;
 import ca.spottedleaf.moonrise.common.util.TickThread;
 import ca.spottedleaf.moonrise.patches.chunk_system.level.entity.server.ServerEntityLookup;
 import ca.spottedleaf.moonrise.patches.entity_tracker.EntityTrackerEntity;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import net.minecraft.server.level.ChunkMap;
 import net.minecraft.server.level.FullChunkStatus;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.Entity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.async.budget.BudgetedThreadPoolExecutor;
+import org.bxteam.divinemc.async.budget.CpuBudget;
 import org.bxteam.divinemc.config.DivineConfig;
 import org.bxteam.divinemc.util.NamedAgnosticThreadFactory;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ticks the entity trackers of a level on the async tracker pool.
+ *
+ * <p>The tracked entities are sorted along a Z-order curve of their chunks and cut into batches at chunk
+ * boundaries, which are ticked on all threads of the pool. The trackers of a dense area are spread over the
+ * threads instead of a single task per level, while a batch still covers neighbouring chunks, which share
+ * most of their viewers. With a single thread, or too few entities for more than one batch, the entities are
+ * ticked in one batch without sorting them. The arrays are kept per level in {@link Buffers} and reused.
+ * The server thread waits for the batches of a tick in {@link #awaitBatches()} before it flushes the
+ * connections, so the tracker packets of a tick go out with it.
+ *
+ * <p>Trackers are not locked: every tracker is in exactly one batch of a tick and the batches of a tick are
+ * done before the level ticks its trackers again. In compat mode the level thread hands the players to
+ * update with to the trackers before submitting the batches, see {@link ChunkMap.TrackedEntity#prepareCompact}.
+ * Entities far away from their viewers send their movement less often, see {@link TrackerUpdateTiers}.
+ */
 public class MultithreadedTracker {
     private static final String THREAD_PREFIX = "Async Tracker";
     private static final Logger LOGGER = LogManager.getLogger(THREAD_PREFIX);
+    private static final int BATCHES_PER_THREAD = 4;
+    private static final int MIN_BATCH_SIZE = 64;
+    private static final int CHUNK_COORDINATE_OFFSET = 1 << 21; // chunk coordinates inside the world border fit in 22 bits
+    private static final AtomicInteger PENDING_BATCHES = new AtomicInteger();
+    private static final Object BATCH_LOCK = new Object();
 
     private static long lastWarnMillis = System.currentTimeMillis();
-    public static final ThreadPoolExecutor TRACKER_EXECUTOR = new ThreadPoolExecutor(
+    public static final BudgetedThreadPoolExecutor TRACKER_EXECUTOR = new BudgetedThreadPoolExecutor(
         getCorePoolSize(),
         getMaxPoolSize(),
         getKeepAliveTime(), TimeUnit.SECONDS,
@@ -38,78 +63,230 @@ public class MultithreadedTracker {
         getRejectedPolicy()
     );
 
-    public static void tick(ServerLevel level) {
+    static {
+        TRACKER_EXECUTOR.allowCoreThreadTimeOut(true);
+        CpuBudget.register(CpuBudget.Pool.ENTITY_TRACKER, TRACKER_EXECUTOR, getMaxPoolSize());
+    }
+
+    public static void tick(ServerLevel level, Buffers buffers) {
         try {
             if (!DivineConfig.AsyncCategory.multithreadedCompatModeEnabled) {
-                tickAsync(level);
+                tickAsync(level, buffers);
             } else {
-                tickAsyncWithCompatMode(level);
+                tickAsyncWithCompatMode(level, buffers);
             }
         } catch (Exception e) {
             LOGGER.error("Error occurred while executing async task.", e);
         }
     }
 
-    private static void tickAsync(ServerLevel level) {
+    private static void tickAsync(ServerLevel level, Buffers buffers) {
         final NearbyPlayers nearbyPlayers = level.moonrise$getNearbyPlayers();
         final ServerEntityLookup entityLookup = (ServerEntityLookup) level.moonrise$getEntityLookup();
 
         final ReferenceList<Entity> trackerEntities = entityLookup.trackerEntities;
-        final Entity[] trackerEntitiesRaw = trackerEntities.getRawDataUnchecked();
+        final int size = trackerEntities.size();
+        final int batches = batchCount(size);
+        final Entity[] entities = collect(buffers, trackerEntities.getRawDataUnchecked(), size, batches > 1);
+        final int[] bounds = batchBounds(buffers, entities, batches);
 
-        TRACKER_EXECUTOR.execute(() -> {
-            for (final Entity entity : trackerEntitiesRaw) {
-                if (entity == null) continue;
+        for (int batch = 0; batch < batches; batch++) {
+            final int from = bounds[batch];
+            final int to = bounds[batch + 1];
+            if (from == to) continue;
 
-                final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entity).moonrise$getTrackedEntity();
+            submitBatch(() -> {
+                for (int i = from; i < to; i++) {
+                    final Entity entity = entities[i];
+                    final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entity).moonrise$getTrackedEntity();
 
-                if (tracker == null) continue;
+                    if (tracker == null) continue;
 
-                synchronized (tracker) {
                     var trackedChunk = nearbyPlayers.getChunk(entity.chunkPosition());
                     tracker.moonrise$tick(trackedChunk);
                     tracker.serverEntity.sendChanges();
                 }
-            }
-        });
+            });
+        }
     }
 
-    private static void tickAsyncWithCompatMode(ServerLevel level) {
+    private static void tickAsyncWithCompatMode(ServerLevel level, Buffers buffers) {
         final NearbyPlayers nearbyPlayers = level.moonrise$getNearbyPlayers();
         final ServerEntityLookup entityLookup = (ServerEntityLookup) level.moonrise$getEntityLookup();
 
         final ReferenceList<Entity> trackerEntities = entityLookup.trackerEntities;
-        final Entity[] trackerEntitiesRaw = trackerEntities.getRawDataUnchecked();
-        final Runnable[] sendChangesTasks = new Runnable[trackerEntitiesRaw.length];
-        final Runnable[] tickTask = new Runnable[trackerEntitiesRaw.length];
-        int index = 0;
-
-        for (final Entity entity : trackerEntitiesRaw) {
-            if (entity == null) continue;
-
+        final int size = trackerEntities.size();
+        final int batches = batchCount(size);
+        final Entity[] entities = collect(buffers, trackerEntities.getRawDataUnchecked(), size, batches > 1);
+        final int[] bounds = batchBounds(buffers, entities, batches);
+
+        // fake players are updated right away, the other trackers keep the players they are updated with for the tracker threads
+        for (int i = 0, count = bounds[batches]; i < count; i++) {
+            final Entity entity = entities[i];
             final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entity).moonrise$getTrackedEntity();
 
             if (tracker == null) continue;
 
-            synchronized (tracker) {
-                tickTask[index] = tracker.tickCompact(nearbyPlayers.getChunk(entity.chunkPosition()));
-                sendChangesTasks[index] = () -> tracker.serverEntity.sendChanges();
+            tracker.prepareCompact(nearbyPlayers.getChunk(entity.chunkPosition()));
+        }
+
+        for (int batch = 0; batch < batches; batch++) {
+            final int from = bounds[batch];
+            final int to = bounds[batch + 1];
+            if (from == to) continue;
+
+            submitBatch(() -> {
+                for (int i = from; i < to; i++) {
+                    final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entities[i]).moonrise$getTrackedEntity();
+                    if (tracker == null || !tracker.isPrepared()) continue;
+
+                    tracker.tickPrepared();
+                }
+                for (int i = from; i < to; i++) {
+                    final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entities[i]).moonrise$getTrackedEntity();
+                    if (tracker == null) continue;
+
+                    tracker.serverEntity.sendChanges();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until the tracker batches submitted so far are done, called by the server thread once all levels ticked.
+     */
+    public static void awaitBatches() {
+        if (PENDING_BATCHES.get() == 0) {
+            return;
+        }
+
+        synchronized (BATCH_LOCK) {
+            while (PENDING_BATCHES.get() != 0 && !TRACKER_EXECUTOR.isShutdown()) {
+                try {
+                    BATCH_LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
-            index++;
         }
+    }
 
+    private static void submitBatch(Runnable batch) {
+        PENDING_BATCHES.incrementAndGet();
         TRACKER_EXECUTOR.execute(() -> {
-            for (final Runnable tick : tickTask) {
-                if (tick == null) continue;
+            try {
+                TrackerPacketBundler.runBundled(batch);
+            } finally {
+                if (PENDING_BATCHES.decrementAndGet() == 0) {
+                    synchronized (BATCH_LOCK) {
+                        BATCH_LOCK.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private static int batchCount(int entities) {
+        final int threads = TRACKER_EXECUTOR.threads();
+        return threads == 1 ? 1 : Math.clamp(entities / MIN_BATCH_SIZE, 1, threads * BATCHES_PER_THREAD);
+    }
 
-                tick.run();
+    /**
+     * Copies the tracked entities of a level into the buffers, so the batches do not see the level adding or
+     * removing entities while they run. When there are several batches the entities are sorted by the Z-order
+     * of their chunk, so the entities of a chunk end up next to each other and neighbouring chunks mostly end up
+     * close by.
+     *
+     * @return the entities to tick, the first {@code buffers.count} of them are set
+     */
+    private static Entity[] collect(Buffers buffers, Entity[] entities, int size, boolean group) {
+        final Entity[] collected = buffers.collected = grow(buffers.collected, size);
+        final int previous = buffers.count;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (entities[i] != null) {
+                collected[count++] = entities[i];
             }
-            for (final Runnable sendChanges : sendChangesTasks) {
-                if (sendChanges == null) continue;
+        }
 
-                sendChanges.run();
+        // clear the entities left over from an earlier, larger tick so the buffers do not keep them alive
+        if (count < previous) {
+            Arrays.fill(collected, count, previous, null);
+            if (buffers.sorted.length > count) {
+                Arrays.fill(buffers.sorted, count, Math.min(previous, buffers.sorted.length), null);
             }
-        });
+        }
+        buffers.count = count;
+
+        if (!group || count < 2) {
+            return collected;
+        }
+
+        final long[] codes = buffers.codes = grow(buffers.codes, count);
+        final int[] order = buffers.order = grow(buffers.order, count);
+        for (int i = 0; i < count; i++) {
+            final Entity entity = collected[i];
+            codes[i] = interleave(entity.chunkPosition().x + CHUNK_COORDINATE_OFFSET) | interleave(entity.chunkPosition().z + CHUNK_COORDINATE_OFFSET) << 1;
+            order[i] = i;
+        }
+
+        IntArrays.quickSort(order, 0, count, (left, right) -> Long.compare(codes[left], codes[right]));
+
+        final Entity[] sorted = buffers.sorted = grow(buffers.sorted, count);
+        for (int i = 0; i < count; i++) {
+            sorted[i] = collected[order[i]];
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Spreads the low 32 bits of a value to the even bits of a long.
+     */
+    private static long interleave(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | bits << 16) & 0x0000FFFF0000FFFFL;
+        bits = (bits | bits << 8) & 0x00FF00FF00FF00FFL;
+        bits = (bits | bits << 4) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | bits << 2) & 0x3333333333333333L;
+        bits = (bits | bits << 1) & 0x5555555555555555L;
+        return bits;
+    }
+
+    /**
+     * Cuts the collected entities into batches of about the same size, moving every cut forward to the next
+     * chunk boundary so the entities of a chunk are always ticked by the same batch.
+     *
+     * @return the start of every batch followed by the end of the last one, batches may be empty
+     */
+    private static int[] batchBounds(Buffers buffers, Entity[] entities, int batches) {
+        final int count = buffers.count;
+        final int[] bounds = buffers.bounds = grow(buffers.bounds, batches + 1);
+        bounds[0] = 0;
+        bounds[batches] = count;
+
+        for (int batch = 1; batch < batches; batch++) {
+            int cut = Math.max(bounds[batch - 1], (int) ((long) count * batch / batches));
+            while (cut > 0 && cut < count && entities[cut].chunkPosition().equals(entities[cut - 1].chunkPosition())) {
+                cut++;
+            }
+            bounds[batch] = cut;
+        }
+
+        return bounds;
+    }
+
+    private static Entity[] grow(Entity[] array, int size) {
+        return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length + (array.length >> 1)));
+    }
+
+    private static long[] grow(long[] array, int size) {
+        return array.length >= size ? array : new long[Math.max(size, array.length + (array.length >> 1))];
+    }
+
+    private static int[] grow(int[] array, int size) {
+        return array.length >= size ? array : new int[Math.max(size, array.length + (array.length >> 1))];
     }
 
     // Original ChunkMap#newTrackerTick of Paper
@@ -135,11 +312,12 @@ public class MultithreadedTracker {
     }
 
     private static int getCorePoolSize() {
-        return 1;
+        // the queue only overflows into threads above the core size when it is full, batches need all threads right away
+        return getMaxPoolSize();
     }
 
     private static int getMaxPoolSize() {
-        return DivineConfig.AsyncCategory.asyncEntityTrackerMaxThreads;
+        return Math.max(1, DivineConfig.AsyncCategory.asyncEntityTrackerMaxThreads);
     }
 
     private static long getKeepAliveTime() {
@@ -181,6 +359,19 @@ public class MultithreadedTracker {
         };
     }
 
+    /**
+     * The arrays a level collects its tracked entities in, reused every tick. Only used by the level thread and
+     * the batches of its last tick, which are done before the level ticks its trackers again.
+     */
+    public static final class Buffers {
+        private Entity[] collected = new Entity[0];
+        private Entity[] sorted = new Entity[0];
+        private long[] codes = new long[0];
+        private int[] order = new int[0];
+        private int[] bounds = new int[0];
+        private int count;
+    }
+
     public static class MultithreadedTrackerThread extends Thread {
         public MultithreadedTrackerThread(Runnable runnable) {
             super(runnable);
@@ -0,0 +1,96 @@
+package org.bxteam.divinemc.async.tracking;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectLinkedOpenHashMap;
+import net.minecraft.network.protocol.BundlerInfo;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundBundlePacket;
+import net.minecraft.server.network.ServerPlayerConnection;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Collects the packets a tracker batch sends to tracking players and sends them as one bundle per player.
+ *
+ * <p>Every packet sent from a tracker thread is a separate task on the connection's event loop. A batch
+ * ticking hundreds of entities in view of a player sends that player hundreds of move and metadata packets,
+ * bundling them turns these into a single write. Entity data packets already only carry the dirty values
+ * of {@link net.minecraft.network.syncher.SynchedEntityData}, so they are bundled as they are.
+ *
+ * <p>Packets sent outside of a batch, like spawn and remove packets sent when players start or stop tracking
+ * an entity, are sent right away as before. They are sent before the batch's bundles, which only ever hold
+ * updates of entities the player already tracks.
+ */
+public final class TrackerPacketBundler {
+    private static final ThreadLocal<TrackerPacketBundler> BUNDLER = new ThreadLocal<>();
+
+    private final Reference2ObjectLinkedOpenHashMap<ServerPlayerConnection, List<Packet<? super ClientGamePacketListener>>> pending = new Reference2ObjectLinkedOpenHashMap<>();
+    private boolean collecting = false;
+
+    private TrackerPacketBundler() {
+    }
+
+    /**
+     * Sends a packet to a tracking player, or adds it to the player's bundle when called from a tracker batch.
+     */
+    public static void send(@NotNull ServerPlayerConnection connection, @NotNull Packet<? super ClientGamePacketListener> packet) {
+        final TrackerPacketBundler bundler = BUNDLER.get();
+        if (bundler == null || !bundler.collecting) {
+            connection.send(packet);
+            return;
+        }
+
+        final List<Packet<? super ClientGamePacketListener>> packets = bundler.pending.computeIfAbsent(connection, key -> new ObjectArrayList<>());
+        if (packet instanceof ClientboundBundlePacket bundle) {
+            // bundles cannot be nested
+            bundle.subPackets().forEach(packets::add);
+        } else {
+            packets.add(packet);
+        }
+    }
+
+    /**
+     * Runs a tracker batch on the current thread and sends the packets it sent to tracking players once it is done.
+     */
+    static void runBundled(@NotNull Runnable batch) {
+        if (!DivineConfig.AsyncCategory.multithreadedBundlePackets) {
+            batch.run();
+            return;
+        }
+
+        TrackerPacketBundler bundler = BUNDLER.get();
+        if (bundler == null) {
+            bundler = new TrackerPacketBundler();
+            BUNDLER.set(bundler);
+        }
+
+        bundler.collecting = true;
+        try {
+            batch.run();
+        } finally {
+            bundler.collecting = false;
+            bundler.flush();
+        }
+    }
+
+    private void flush() {
+        for (var entry : this.pending.reference2ObjectEntrySet()) {
+            final ServerPlayerConnection connection = entry.getKey();
+            final List<Packet<? super ClientGamePacketListener>> packets = entry.getValue();
+
+            if (packets.size() == 1) {
+                connection.send(packets.getFirst());
+                continue;
+            }
+
+            for (int from = 0; from < packets.size(); from += BundlerInfo.BUNDLE_SIZE_LIMIT) {
+                connection.send(new ClientboundBundlePacket(packets.subList(from, Math.min(packets.size(), from + BundlerInfo.BUNDLE_SIZE_LIMIT))));
+            }
+        }
+
+        this.pending.clear();
+    }
+}
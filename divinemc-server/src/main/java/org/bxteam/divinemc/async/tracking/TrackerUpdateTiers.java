@@ -0,0 +1,75 @@
+package org.bxteam.divinemc.async.tracking;
+
+import ca.spottedleaf.moonrise.patches.entity_tracker.EntityTrackerEntity;
+import net.minecraft.server.level.ChunkMap;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.network.ServerPlayerConnection;
+import net.minecraft.world.entity.Entity;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Picks how often the async tracker sends the movement of an entity, by its distance to the closest player
+ * tracking it.
+ *
+ * <p>{@link net.minecraft.server.level.ServerEntity#sendChanges()} still runs every tick, so its own
+ * cadences, like the update interval of the entity type, item frame map updates and the periodic position
+ * resync, keep counting ticks. Only relative move and rotation packets are held back: the position and
+ * rotation they are relative to are not updated when a move is held, so the next move sent carries the whole
+ * movement since the last one. Absolute position syncs, motion, entity data and everything else are sent as
+ * usual.
+ *
+ * <p>Movement is sent as deltas to the last position sent to all viewers of an entity, so a move cannot be
+ * held for a single viewer. The tier of an entity is the one of its closest viewer instead, so nobody close
+ * by sees it move less often. A move is held until the interval of the tier passed since the last move sent,
+ * so an entity type moving every few ticks moves every interval ticks rounded up to its own update interval.
+ *
+ * <p>The squared distance is computed like Dynamic Activation of Brain does in
+ * {@link io.papermc.paper.entity.activation.ActivationRange}.
+ */
+public final class TrackerUpdateTiers {
+    private TrackerUpdateTiers() {
+    }
+
+    /**
+     * Called from {@code ServerEntity#sendChanges} when it is about to send a relative move of an entity.
+     *
+     * @return whether the move should be sent this tick
+     */
+    public static boolean shouldSendMovement(@NotNull Entity entity, int tick) {
+        if (!DivineConfig.AsyncCategory.multithreadedEnabled || !DivineConfig.AsyncCategory.trackerDistanceTiersEnabled
+            || entity instanceof ServerPlayer || entity.isVehicle()) {
+            return true;
+        }
+
+        final ChunkMap.TrackedEntity tracker = ((EntityTrackerEntity) entity).moonrise$getTrackedEntity();
+        if (tracker == null) {
+            return true;
+        }
+
+        final ServerPlayerConnection[] viewers = tracker.seenBy();
+        if (viewers.length == 0) {
+            return true;
+        }
+
+        int squaredDistance = Integer.MAX_VALUE;
+        for (final ServerPlayerConnection viewer : viewers) {
+            squaredDistance = Math.min(squaredDistance, (int) viewer.getPlayer().distanceToSqr(entity));
+            if (squaredDistance <= DivineConfig.AsyncCategory.trackerFullRateDistanceSquared) {
+                tracker.lastMovementTick = tick;
+                return true;
+            }
+        }
+
+        final int interval = squaredDistance <= DivineConfig.AsyncCategory.trackerReducedRateDistanceSquared
+            ? DivineConfig.AsyncCategory.trackerReducedRateInterval
+            : DivineConfig.AsyncCategory.trackerFarInterval;
+
+        if (interval > 1 && tick - tracker.lastMovementTick < interval) {
+            return false;
+        }
+
+        tracker.lastMovementTick = tick;
+        return true;
+    }
+}
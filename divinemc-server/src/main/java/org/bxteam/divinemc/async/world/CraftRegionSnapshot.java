@@ -0,0 +1,158 @@
+package org.bxteam.divinemc.async.world;
+
+import ca.spottedleaf.concurrentutil.util.Priority;
+import ca.spottedleaf.moonrise.common.util.TickThread;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.craftbukkit.CraftChunk;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bxteam.divinemc.world.RegionSnapshot;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Region snapshots handed out by {@link CraftWorld#getRegionSnapshot(int, int, int, int)}.
+ *
+ * <p>The chunks are copied on the thread ticking the world: right away when the caller already is that
+ * thread, otherwise through the world's chunk task queue, which the world's thread drains during its tick
+ * and the main thread between ticks. Other tick threads, like the region and async tracker workers, run
+ * while other threads change the world and always go through the queue. Every loaded chunk is copied as a {@link ChunkSnapshot}, which copies
+ * the block state and biome palettes of its sections, so reading the snapshot never touches the world.
+ */
+public final class CraftRegionSnapshot implements RegionSnapshot {
+    public static final int MAX_CHUNKS = 1024;
+
+    private final World world;
+    private final long version;
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int maxChunkX;
+    private final int maxChunkZ;
+    private final ChunkSnapshot[] chunks;
+
+    private CraftRegionSnapshot(World world, long version, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, ChunkSnapshot[] chunks) {
+        this.world = world;
+        this.version = version;
+        this.minChunkX = minChunkX;
+        this.minChunkZ = minChunkZ;
+        this.maxChunkX = maxChunkX;
+        this.maxChunkZ = maxChunkZ;
+        this.chunks = chunks;
+    }
+
+    public static @NotNull CompletableFuture<RegionSnapshot> capture(@NotNull CraftWorld world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        if (minChunkX > maxChunkX || minChunkZ > maxChunkZ) {
+            throw new IllegalArgumentException("Region is empty");
+        }
+        if ((long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1) > MAX_CHUNKS) {
+            throw new IllegalArgumentException("Region holds more than " + MAX_CHUNKS + " chunks");
+        }
+
+        final ServerLevel level = world.getHandle();
+        if (isWorldThread(level)) {
+            return CompletableFuture.completedFuture(take(world, minChunkX, minChunkZ, maxChunkX, maxChunkZ));
+        }
+
+        final CompletableFuture<RegionSnapshot> future = new CompletableFuture<>();
+        level.moonrise$getChunkTaskScheduler().scheduleChunkTask(minChunkX, minChunkZ, () -> {
+            try {
+                future.complete(take(world, minChunkX, minChunkZ, maxChunkX, maxChunkZ));
+            } catch (Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        }, Priority.NORMAL);
+
+        return future;
+    }
+
+    /**
+     * Whether the current thread is the one ticking the world, the world's thread with parallel world ticking
+     * or the main thread otherwise.
+     */
+    private static boolean isWorldThread(ServerLevel level) {
+        if (Thread.currentThread() instanceof TickThread.ServerLevelTickThread levelThread) {
+            return levelThread.currentlyTickingServerLevel == level;
+        }
+
+        return level.getServer().isSameThread();
+    }
+
+    private static RegionSnapshot take(CraftWorld world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        final ServerLevel level = world.getHandle();
+        final int width = maxChunkX - minChunkX + 1;
+        final ChunkSnapshot[] chunks = new ChunkSnapshot[width * (maxChunkZ - minChunkZ + 1)];
+
+        for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                final LevelChunk chunk = level.getChunkIfLoaded(chunkX, chunkZ);
+                if (chunk != null) {
+                    chunks[(chunkZ - minChunkZ) * width + chunkX - minChunkX] = new CraftChunk(chunk).getChunkSnapshot(false, true, false);
+                }
+            }
+        }
+
+        return new CraftRegionSnapshot(world, level.getGameTime(), minChunkX, minChunkZ, maxChunkX, maxChunkZ, chunks);
+    }
+
+    @Override
+    public @NotNull World getWorld() {
+        return this.world;
+    }
+
+    @Override
+    public long getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public int getMinChunkX() {
+        return this.minChunkX;
+    }
+
+    @Override
+    public int getMinChunkZ() {
+        return this.minChunkZ;
+    }
+
+    @Override
+    public int getMaxChunkX() {
+        return this.maxChunkX;
+    }
+
+    @Override
+    public int getMaxChunkZ() {
+        return this.maxChunkZ;
+    }
+
+    @Override
+    public boolean containsChunk(int chunkX, int chunkZ) {
+        return chunkX >= this.minChunkX && chunkX <= this.maxChunkX && chunkZ >= this.minChunkZ && chunkZ <= this.maxChunkZ;
+    }
+
+    @Override
+    public @Nullable ChunkSnapshot getChunkSnapshot(int chunkX, int chunkZ) {
+        if (!this.containsChunk(chunkX, chunkZ)) {
+            throw new IllegalArgumentException("Chunk " + chunkX + ", " + chunkZ + " is outside of the snapshot");
+        }
+
+        return this.chunks[(chunkZ - this.minChunkZ) * (this.maxChunkX - this.minChunkX + 1) + chunkX - this.minChunkX];
+    }
+
+    @Override
+    public @Nullable BlockData getBlockData(int x, int y, int z) {
+        final ChunkSnapshot chunk = this.getChunkSnapshot(x >> 4, z >> 4);
+        return chunk == null ? null : chunk.getBlockData(x & 15, y, z & 15);
+    }
+
+    @Override
+    public @Nullable Biome getBiome(int x, int y, int z) {
+        final ChunkSnapshot chunk = this.getChunkSnapshot(x >> 4, z >> 4);
+        return chunk == null ? null : chunk.getBiome(x & 15, y, z & 15);
+    }
+}
@@ -0,0 +1,48 @@
+package org.bxteam.divinemc.async.world;
+
+import net.minecraft.server.level.ServerLevel;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Ticks worlds without players only every few server ticks.
+ *
+ * <p>A world that stays loaded only through spawn or plugin chunk tickets still runs its entities, block
+ * entities and scheduled ticks every tick, taking a whole thread with parallel world ticking. Once it has
+ * been empty for the grace period it is only ticked every {@code tick-interval} ticks, and ticked again
+ * every tick as soon as a player enters it.
+ *
+ * <p>The world's own {@link org.bxteam.divinemc.util.tps.TPSCalculator} sees the skipped ticks as a slow
+ * tick, so the lag compensation settings catch its day time and timers up the same way they do when the
+ * server lags. Random ticks need players nearby and do not happen in such worlds anyway.
+ */
+public final class IdleWorldTicking {
+    private IdleWorldTicking() {
+    }
+
+    /**
+     * Called once per server tick for every level, before deciding whether to tick it.
+     *
+     * @return whether the level should tick this server tick
+     */
+    public static boolean shouldTick(@NotNull ServerLevel level) {
+        final int interval = DivineConfig.AsyncCategory.idleWorldTickInterval;
+        if (interval <= 1 || !level.players().isEmpty()) {
+            level.idleTicks = 0;
+            return true;
+        }
+
+        final int idleTicks = level.idleTicks++;
+        final int grace = DivineConfig.AsyncCategory.idleWorldGraceTicks;
+        if (idleTicks < grace) {
+            return true;
+        }
+
+        if (idleTicks - grace >= interval - 1) {
+            level.idleTicks = grace;
+            return true;
+        }
+
+        return false;
+    }
+}
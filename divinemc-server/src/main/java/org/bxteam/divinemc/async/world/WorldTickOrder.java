@@ -0,0 +1,37 @@
+package org.bxteam.divinemc.async.world;
+
+import net.minecraft.server.level.ServerLevel;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides in which order parallel world ticking hands the worlds to their threads.
+ *
+ * <p>Worlds only tick at the same time while the world ticking semaphore has permits left, so with fewer
+ * permits than worlds the last submitted world starts once another one finished. Submitting the worlds that
+ * took the longest last tick first keeps the slowest world from starting late and stretching the tick.
+ */
+public final class WorldTickOrder {
+    private static final Comparator<ServerLevel> LONGEST_FIRST = Comparator.comparingLong((ServerLevel level) -> level.lastTickNanos).reversed();
+
+    private WorldTickOrder() {
+    }
+
+    /**
+     * @return the levels in the order their ticks should be submitted, levels with equal tick times keep their order
+     */
+    public static @NotNull Iterable<ServerLevel> order(@NotNull Iterable<ServerLevel> levels) {
+        if (!DivineConfig.AsyncCategory.enableParallelWorldTicking || !DivineConfig.AsyncCategory.parallelLongestFirst) {
+            return levels;
+        }
+
+        final List<ServerLevel> sorted = new ArrayList<>();
+        levels.forEach(sorted::add);
+        sorted.sort(LONGEST_FIRST);
+        return sorted;
+    }
+}
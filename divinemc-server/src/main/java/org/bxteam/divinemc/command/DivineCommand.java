@@ -29,12 +29,22 @@ public final class DivineCommand extends Command {
     private static final DivineSubCommand MSPT_SUBCOMMAND = new MSPTCommand();
     private static final DivineSubCommand RELOAD_SUBCOMMAND = new ReloadCommand();
     private static final DivineSubCommand VERSION_SUBCOMMAND = new VersionCommand();
+    private static final DivineSubCommand TRAIN_DICTIONARY_SUBCOMMAND = new TrainDictionaryCommand();
+    private static final DivineSubCommand REGION_IO_SUBCOMMAND = new RegionIOCommand();
+    private static final DivineSubCommand CONVERT_REGIONS_SUBCOMMAND = new ConvertRegionsCommand();
+    private static final DivineSubCommand REGIONS_SUBCOMMAND = new RegionsCommand();
+    private static final DivineSubCommand BUDGET_SUBCOMMAND = new BudgetCommand();
     private static final Map<String, DivineSubCommand> SUBCOMMANDS = Util.make(() -> {
         final Map<Set<String>, DivineSubCommand> commands = new HashMap<>();
 
         commands.put(Set.of(MSPTCommand.LITERAL_ARGUMENT), MSPT_SUBCOMMAND);
         commands.put(Set.of(ReloadCommand.LITERAL_ARGUMENT), RELOAD_SUBCOMMAND);
         commands.put(Set.of(VersionCommand.LITERAL_ARGUMENT), VERSION_SUBCOMMAND);
+        commands.put(Set.of(TrainDictionaryCommand.LITERAL_ARGUMENT), TRAIN_DICTIONARY_SUBCOMMAND);
+        commands.put(Set.of(RegionIOCommand.LITERAL_ARGUMENT), REGION_IO_SUBCOMMAND);
+        commands.put(Set.of(ConvertRegionsCommand.LITERAL_ARGUMENT), CONVERT_REGIONS_SUBCOMMAND);
+        commands.put(Set.of(RegionsCommand.LITERAL_ARGUMENT), REGIONS_SUBCOMMAND);
+        commands.put(Set.of(BudgetCommand.LITERAL_ARGUMENT), BUDGET_SUBCOMMAND);
 
         return commands.entrySet().stream()
                 .flatMap(entry -> entry.getKey().stream().map(s -> Map.entry(s, entry.getValue())))
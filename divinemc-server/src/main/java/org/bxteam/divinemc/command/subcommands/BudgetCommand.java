@@ -0,0 +1,62 @@
+package org.bxteam.divinemc.command.subcommands;
+
+import net.kyori.adventure.text.Component;
+import net.minecraft.server.MinecraftServer;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.PermissionDefault;
+import org.bxteam.divinemc.async.budget.CpuBudget;
+import org.bxteam.divinemc.command.DivineCommand;
+import org.bxteam.divinemc.command.DivineSubCommandPermission;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.text.DecimalFormat;
+import java.util.List;
+
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Shows how the CPU budget is currently split between the thread pools.
+ */
+@DefaultQualifier(NonNull.class)
+public final class BudgetCommand extends DivineSubCommandPermission {
+    public static final String LITERAL_ARGUMENT = "budget";
+    public static final String PERM = DivineCommand.BASE_PERM + "." + LITERAL_ARGUMENT;
+    private static final DecimalFormat DF = new DecimalFormat("########0.0");
+
+    public BudgetCommand() {
+        super(PERM, PermissionDefault.OP);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String subCommand, String[] args) {
+        if (!CpuBudget.isRunning()) {
+            sender.sendMessage(Component.text("The CPU budget is not running.", RED));
+            sender.sendMessage(Component.text("Enable it in divinemc.yml, it starts with the first pool that uses it.", GRAY));
+            return true;
+        }
+
+        final List<CpuBudget.Allocation> allocations = CpuBudget.allocations();
+        int used = 0;
+        for (CpuBudget.Allocation allocation : allocations) {
+            used += allocation.threads();
+        }
+
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━ ", GOLD)
+            .append(Component.text("CPU Budget", YELLOW))
+            .append(Component.text(" ━━━━━━━━━━━━━", GOLD)));
+        sender.sendMessage(Component.text("Threads: ", GOLD)
+            .append(Component.text(used + "/" + CpuBudget.budget() + " of " + Runtime.getRuntime().availableProcessors() + " cores", GRAY)));
+        sender.sendMessage(Component.text("MSPT: ", GOLD)
+            .append(Component.text(DF.format(MinecraftServer.getServer().getAverageTickTimeNanos() * 1.0E-6) + "ms", GRAY)));
+
+        for (CpuBudget.Allocation allocation : allocations) {
+            final double busy = allocation.utilization() * 100.0;
+            sender.sendMessage(Component.text("  " + allocation.pool().getDisplayName() + ": ", GOLD)
+                .append(Component.text(allocation.threads() + "/" + allocation.maxThreads() + " threads", GRAY))
+                .append(Component.text(", " + DF.format(busy) + "% busy", busy >= 85.0 ? RED : busy >= 60.0 ? YELLOW : GREEN)));
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+package org.bxteam.divinemc.command.subcommands;
+
+import net.kyori.adventure.text.Component;
+import net.minecraft.Util;
+import net.minecraft.server.MinecraftServer;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.PermissionDefault;
+import org.bxteam.divinemc.command.DivineCommand;
+import org.bxteam.divinemc.command.DivineSubCommandPermission;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.region.EnumRegionFileExtension;
+import org.bxteam.divinemc.region.RegionConverter;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Converts the region files of a world that is not loaded to another region format.
+ */
+@DefaultQualifier(NonNull.class)
+public final class ConvertRegionsCommand extends DivineSubCommandPermission {
+    public static final String LITERAL_ARGUMENT = "convertregions";
+    public static final String PERM = DivineCommand.BASE_PERM + "." + LITERAL_ARGUMENT;
+    private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+
+    public ConvertRegionsCommand() {
+        super(PERM, PermissionDefault.OP);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String subCommand, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage(Component.text("Usage: /" + DivineCommand.COMMAND_LABEL + " " + LITERAL_ARGUMENT + " <world-folder> [mca|linear|b_linear]", RED));
+            return true;
+        }
+
+        if (Bukkit.getWorld(args[0]) != null) {
+            sender.sendMessage(Component.text("World " + args[0] + " is loaded, only unloaded worlds can be converted. Use --convert-regions on startup for loaded worlds.", RED));
+            return true;
+        }
+
+        final Path world = Bukkit.getWorldContainer().toPath().resolve(args[0]);
+        if (!Files.isRegularFile(world.resolve("level.dat"))) {
+            sender.sendMessage(Component.text("Unknown world folder: " + args[0], RED));
+            return true;
+        }
+
+        EnumRegionFileExtension target = DivineConfig.MiscCategory.regionFileType;
+        if (args.length > 1) {
+            target = EnumRegionFileExtension.fromString(args[1]);
+            if (target == null) {
+                sender.sendMessage(Component.text("Unknown region format: " + args[1], RED));
+                return true;
+            }
+        }
+
+        if (!RUNNING.compareAndSet(false, true)) {
+            sender.sendMessage(Component.text("A region conversion is already in progress.", RED));
+            return true;
+        }
+
+        final EnumRegionFileExtension format = target;
+        sender.sendMessage(Component.text("Converting regions of ", GRAY)
+            .append(Component.text(args[0], GOLD))
+            .append(Component.text(" to " + format + " in the background...", GRAY)));
+
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return new RegionConverter(format, Runtime.getRuntime().availableProcessors(), progress -> sender.sendMessage(
+                    Component.text("Converted ", GRAY)
+                        .append(Component.text(progress.filesDone() + "/" + progress.filesTotal(), GOLD))
+                        .append(Component.text(" region files (" + progress.chunks() + " chunks)", GRAY))
+                )).convert(RegionConverter.findRegionFoldersOfWorld(world));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, Util.ioPool()).whenComplete((progress, throwable) -> {
+            RUNNING.set(false);
+
+            if (throwable != null) {
+                MinecraftServer.LOGGER.error("Failed to convert regions of world {}", args[0], throwable);
+                sender.sendMessage(Component.text("Region conversion failed, see console for details.", RED));
+            } else if (progress.filesFailed() > 0) {
+                sender.sendMessage(Component.text(progress.filesFailed() + " region files could not be converted and were left unchanged, see console for details.", YELLOW));
+            } else {
+                sender.sendMessage(Component.text("Region conversion finished.", GREEN));
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public List<String> tabComplete(CommandSender sender, String subCommand, String[] args) {
+        if (args.length == 1) {
+            try (Stream<Path> worlds = Files.list(Bukkit.getWorldContainer().toPath())) {
+                return worlds
+                    .filter(path -> Files.isRegularFile(path.resolve("level.dat")))
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> Bukkit.getWorld(name) == null)
+                    .toList();
+            } catch (IOException ignored) {
+                return Collections.emptyList();
+            }
+        }
+
+        if (args.length == 2) {
+            return Arrays.stream(EnumRegionFileExtension.values()).map(EnumRegionFileExtension::getArgument).toList();
+        }
+
+        return Collections.emptyList();
+    }
+}
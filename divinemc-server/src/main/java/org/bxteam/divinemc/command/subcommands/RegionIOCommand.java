@@ -0,0 +1,59 @@
+package org.bxteam.divinemc.command.subcommands;
+
+import net.kyori.adventure.text.Component;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.PermissionDefault;
+import org.bxteam.divinemc.command.DivineCommand;
+import org.bxteam.divinemc.command.DivineSubCommandPermission;
+import org.bxteam.divinemc.region.ChunkReadCache;
+import org.bxteam.divinemc.region.RegionWriteBackScheduler;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.text.DecimalFormat;
+
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+@DefaultQualifier(NonNull.class)
+public final class RegionIOCommand extends DivineSubCommandPermission {
+    public static final String LITERAL_ARGUMENT = "regionio";
+    public static final String PERM = DivineCommand.BASE_PERM + "." + LITERAL_ARGUMENT;
+    private static final DecimalFormat DF = new DecimalFormat("########0.0");
+
+    public RegionIOCommand() {
+        super(PERM, PermissionDefault.OP);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String subCommand, String[] args) {
+        final RegionWriteBackScheduler.Metrics metrics = RegionWriteBackScheduler.metrics();
+
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━ ", GOLD)
+            .append(Component.text("Region I/O", YELLOW))
+            .append(Component.text(" ━━━━━━━━━━━━━", GOLD)));
+
+        if (!RegionWriteBackScheduler.isRunning()) {
+            sender.sendMessage(Component.text("The write-back scheduler is idle, it only runs for the LINEAR and B_LINEAR formats.", GRAY));
+        }
+
+        sendLine(sender, "Queue depth: ", metrics.queueDepth() + " files");
+        sendLine(sender, "Last batch: ", metrics.lastBatchSize() + " files in " + DF.format(metrics.lastBatchNanos() * 1.0E-6) + "ms");
+        sendLine(sender, "Write-back latency: ", DF.format(metrics.averageLatencyNanos() * 1.0E-6) + "ms avg, "
+            + DF.format(metrics.maxLatencyNanos() * 1.0E-6) + "ms max");
+        sendLine(sender, "Totals: ", metrics.batches() + " batches, " + metrics.filesWritten() + " files, "
+            + metrics.forces() + " syncs, " + DF.format(metrics.bytesWritten() / (1024.0 * 1024.0)) + " MiB");
+        sendLine(sender, "Deferred by bandwidth budget: ", String.valueOf(metrics.deferred()));
+
+        final ChunkReadCache.Metrics cache = ChunkReadCache.metrics();
+        sendLine(sender, "Chunk read cache: ", ChunkReadCache.isEnabled()
+            ? DF.format(cache.hitRate() * 100.0) + "% hits (" + cache.hits() + "/" + (cache.hits() + cache.misses()) + "), "
+                + cache.entries() + " chunks, " + DF.format(cache.bytes() / (1024.0 * 1024.0)) + " MiB, " + cache.evictions() + " evictions"
+            : "disabled");
+
+        return true;
+    }
+
+    private static void sendLine(CommandSender sender, String label, String value) {
+        sender.sendMessage(Component.text(label, GOLD).append(Component.text(value, GRAY)));
+    }
+}
@@ -0,0 +1,152 @@
+package org.bxteam.divinemc.command.subcommands;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import net.kyori.adventure.text.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import org.bukkit.command.CommandSender;
+import org.bukkit.permissions.PermissionDefault;
+import org.bxteam.divinemc.async.rct.RegionTickHistory;
+import org.bxteam.divinemc.async.rct.RegionizedChunkTicking;
+import org.bxteam.divinemc.command.DivineCommand;
+import org.bxteam.divinemc.command.DivineSubCommandPermission;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Lists the most expensive player regions of each level ticked by regionized chunk ticking.
+ */
+@DefaultQualifier(NonNull.class)
+public final class RegionsCommand extends DivineSubCommandPermission {
+    public static final String LITERAL_ARGUMENT = "regions";
+    public static final String PERM = DivineCommand.BASE_PERM + "." + LITERAL_ARGUMENT;
+    private static final DecimalFormat DF = new DecimalFormat("########0.00");
+    private static final int DEFAULT_COUNT = 5;
+
+    public RegionsCommand() {
+        super(PERM, PermissionDefault.OP);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String subCommand, String[] args) {
+        if (!DivineConfig.AsyncCategory.enableRegionizedChunkTicking) {
+            sender.sendMessage(Component.text("Region statistics are only available when regionized chunk ticking is enabled.", RED));
+            sender.sendMessage(Component.text("Please enable it in divinemc.yml to use this command.", GRAY));
+            return true;
+        }
+
+        String worldName = null;
+        int count = DEFAULT_COUNT;
+        for (String arg : args) {
+            try {
+                count = Math.max(1, Integer.parseInt(arg));
+            } catch (NumberFormatException ignored) {
+                worldName = arg;
+            }
+        }
+
+        sender.sendMessage(Component.text("━━━━━━━━━━━━━ ", GOLD)
+            .append(Component.text("Tick Regions", YELLOW))
+            .append(Component.text(" ━━━━━━━━━━━━━", GOLD)));
+
+        boolean found = false;
+        for (ServerLevel level : MinecraftServer.getServer().getAllLevels()) {
+            if (worldName != null && !level.getWorld().getName().equalsIgnoreCase(worldName)) {
+                continue;
+            }
+            if (!(level.getChunkSource() instanceof RegionizedChunkTicking regionized)) {
+                continue;
+            }
+
+            found = true;
+            displayLevel(sender, level, regionized.getTickHistory().snapshot(), count);
+        }
+
+        if (!found) {
+            sender.sendMessage(Component.text(worldName != null ? "Unknown world: " + worldName : "No world is using regionized chunk ticking.", RED));
+        }
+
+        return true;
+    }
+
+    private static void displayLevel(CommandSender sender, ServerLevel level, List<RegionTickHistory.TickSample> ticks, int count) {
+        // regions keep their id until players join or leave them, so each id is averaged over the ticks it existed for
+        final Long2ObjectLinkedOpenHashMap<RegionStats> regions = new Long2ObjectLinkedOpenHashMap<>();
+        for (RegionTickHistory.TickSample tick : ticks) {
+            for (RegionTickHistory.RegionSample sample : tick.regions()) {
+                regions.computeIfAbsent(sample.regionId(), id -> new RegionStats()).add(sample);
+            }
+        }
+
+        final int current = ticks.isEmpty() ? 0 : ticks.getLast().regions().length;
+        sender.sendMessage(Component.text("➤ ", YELLOW)
+            .append(Component.text(level.getWorld().getName(), GOLD))
+            .append(Component.text(" (" + current + " regions, last " + ticks.size() + " ticks)", GRAY)));
+
+        final List<RegionStats> sorted = new ArrayList<>(regions.values());
+        sorted.sort(Comparator.comparingDouble(RegionStats::averageBusyMillis).reversed());
+
+        for (int i = 0; i < Math.min(count, sorted.size()); i++) {
+            final RegionStats stats = sorted.get(i);
+            final RegionTickHistory.RegionSample latest = stats.latest;
+
+            sender.sendMessage(Component.text("  #" + (i + 1) + " ", GOLD)
+                .append(Component.text(DF.format(stats.averageBusyMillis()) + "ms", stats.averageBusyMillis() >= 10.0 ? RED : stats.averageBusyMillis() >= 5.0 ? YELLOW : GREEN))
+                .append(Component.text(" (wall " + DF.format(stats.averageWallMillis()) + "ms)", GRAY))
+                .append(Component.text(" " + latest.chunks() + " chunks, " + latest.entities() + " entities, " + latest.blockEntities() + " block entities", GRAY))
+                .append(Component.text(" at " + latest.centerBlockX() + ", " + latest.centerBlockZ(), AQUA)));
+        }
+
+        if (sorted.isEmpty()) {
+            sender.sendMessage(Component.text("  No regions were ticked recently.", GRAY));
+        }
+    }
+
+    @Override
+    public List<String> tabComplete(CommandSender sender, String subCommand, String[] args) {
+        if (args.length == 1) {
+            final List<String> worlds = new ArrayList<>();
+            for (ServerLevel level : MinecraftServer.getServer().getAllLevels()) {
+                worlds.add(level.getWorld().getName());
+            }
+            return worlds;
+        }
+
+        if (args.length == 2) {
+            return List.of("5", "10", "20");
+        }
+
+        return Collections.emptyList();
+    }
+
+    private static final class RegionStats {
+        private long busyNanos;
+        private long wallNanos;
+        private int ticks;
+        private RegionTickHistory.RegionSample latest;
+
+        private void add(RegionTickHistory.RegionSample sample) {
+            this.busyNanos += sample.busyNanos();
+            this.wallNanos += sample.wallNanos();
+            this.ticks++;
+            this.latest = sample;
+        }
+
+        private double averageBusyMillis() {
+            return this.busyNanos * 1.0E-6 / this.ticks;
+        }
+
+        private double averageWallMillis() {
+            return this.wallNanos * 1.0E-6 / this.ticks;
+        }
+    }
+}
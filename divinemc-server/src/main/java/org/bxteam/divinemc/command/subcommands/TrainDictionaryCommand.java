@@ -0,0 +1,161 @@
+package org.bxteam.divinemc.command.subcommands;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+import net.kyori.adventure.text.Component;
+import net.minecraft.Util;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.dimension.DimensionType;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.permissions.PermissionDefault;
+import org.bxteam.divinemc.command.DivineCommand;
+import org.bxteam.divinemc.command.DivineSubCommandPermission;
+import org.bxteam.divinemc.region.EnumRegionFileExtension;
+import org.bxteam.divinemc.region.type.BufferedRegionFile;
+import org.bxteam.divinemc.region.type.ZstdDictionaryStore;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.framework.qual.DefaultQualifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static net.kyori.adventure.text.format.NamedTextColor.*;
+
+/**
+ * Trains a Zstd dictionary per region folder of a world from its existing {@code b_linear} files.
+ */
+@DefaultQualifier(NonNull.class)
+public final class TrainDictionaryCommand extends DivineSubCommandPermission {
+    public static final String LITERAL_ARGUMENT = "traindict";
+    public static final String PERM = DivineCommand.BASE_PERM + "." + LITERAL_ARGUMENT;
+    private static final List<String> REGION_FOLDERS = List.of("region", "entities", "poi");
+    private static final int DEFAULT_DICTIONARY_SIZE_KB = 112;
+    private static final int MAX_SAMPLE_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_SAMPLES = 16;
+    private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+
+    public TrainDictionaryCommand() {
+        super(PERM, PermissionDefault.OP);
+    }
+
+    @Override
+    public boolean execute(CommandSender sender, String subCommand, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage(Component.text("Usage: /" + DivineCommand.COMMAND_LABEL + " " + LITERAL_ARGUMENT + " <world> [dictionary-size-kb]", RED));
+            return true;
+        }
+
+        final World world = Bukkit.getWorld(args[0]);
+        if (world == null) {
+            sender.sendMessage(Component.text("Unknown world: " + args[0], RED));
+            return true;
+        }
+
+        int dictionarySizeKb = DEFAULT_DICTIONARY_SIZE_KB;
+        if (args.length > 1) {
+            try {
+                dictionarySizeKb = Integer.parseInt(args[1]);
+            } catch (NumberFormatException ignored) {
+                dictionarySizeKb = -1;
+            }
+
+            if (dictionarySizeKb < 1 || dictionarySizeKb > 1024) {
+                sender.sendMessage(Component.text("Dictionary size must be between 1 and 1024 KiB", RED));
+                return true;
+            }
+        }
+
+        if (!RUNNING.compareAndSet(false, true)) {
+            sender.sendMessage(Component.text("A dictionary training run is already in progress.", RED));
+            return true;
+        }
+
+        final ServerLevel level = ((CraftWorld) world).getHandle();
+        final Path dimensionFolder = DimensionType.getStorageFolder(level.dimension(), world.getWorldFolder().toPath());
+        final int dictionarySize = dictionarySizeKb * 1024;
+
+        sender.sendMessage(Component.text("Training Zstd dictionaries for ", GRAY)
+            .append(Component.text(world.getName(), GOLD))
+            .append(Component.text(" in the background...", GRAY)));
+
+        CompletableFuture.runAsync(() -> {
+            for (String folderName : REGION_FOLDERS) {
+                this.trainFolder(sender, dimensionFolder.resolve(folderName), dictionarySize);
+            }
+        }, Util.ioPool()).whenComplete((ignored, throwable) -> {
+            RUNNING.set(false);
+
+            if (throwable != null) {
+                MinecraftServer.LOGGER.error("Failed to train Zstd dictionaries for world {}", world.getName(), throwable);
+                sender.sendMessage(Component.text("Dictionary training failed, see console for details.", RED));
+            }
+        });
+
+        return true;
+    }
+
+    private void trainFolder(CommandSender sender, Path folder, int dictionarySize) {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+
+        final String extension = "." + EnumRegionFileExtension.B_LINEAR.getArgument();
+        final int sampleBudget = (int) Math.min(MAX_SAMPLE_BYTES, dictionarySize * 100L);
+        final ZstdDictTrainer trainer = new ZstdDictTrainer(sampleBudget, dictionarySize);
+        final int[] samples = {0};
+
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files.filter(path -> path.getFileName().toString().endsWith(extension))::iterator) {
+                final boolean more = BufferedRegionFile.readAllChunks(file, chunk -> {
+                    final byte[] sample = new byte[chunk.remaining()];
+                    chunk.get(sample);
+
+                    if (!trainer.addSample(sample)) {
+                        return false;
+                    }
+
+                    samples[0]++;
+                    return true;
+                });
+
+                if (!more) {
+                    break;
+                }
+            }
+
+            if (samples[0] < MIN_SAMPLES) {
+                sender.sendMessage(Component.text("Skipping " + folder.getFileName() + ": only " + samples[0] + " chunks found", YELLOW));
+                return;
+            }
+
+            final byte[] dictionary = trainer.trainSamples();
+            final ZstdDictionaryStore.Dictionary installed = ZstdDictionaryStore.forFolder(folder).install(dictionary);
+
+            sender.sendMessage(Component.text("Trained dictionary ", GRAY)
+                .append(Component.text(Integer.toUnsignedString(installed.id()), GOLD))
+                .append(Component.text(" for " + folder.getFileName() + " from " + samples[0] + " chunks (" + installed.size() / 1024 + " KiB)", GRAY)));
+        } catch (IOException | RuntimeException ex) {
+            MinecraftServer.LOGGER.error("Failed to train Zstd dictionary for {}", folder, ex);
+            sender.sendMessage(Component.text("Failed to train dictionary for " + folder.getFileName() + ": " + ex.getMessage(), RED));
+        }
+    }
+
+    @Override
+    public List<String> tabComplete(CommandSender sender, String subCommand, String[] args) {
+        if (args.length == 1) {
+            return Bukkit.getWorlds().stream().map(World::getName).toList();
+        }
+
+        return Collections.emptyList();
+    }
+}
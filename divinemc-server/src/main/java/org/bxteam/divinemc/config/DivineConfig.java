@@ -11,7 +11,6 @@ import org.bxteam.divinemc.chunk.ChunkSystemAlgorithm;
 import org.bxteam.divinemc.config.annotations.Experimental;
 import org.bxteam.divinemc.async.pathfinding.PathfindTaskRejectPolicy;
 import org.bxteam.divinemc.region.EnumRegionFileExtension;
-import org.bxteam.divinemc.region.type.LinearRegionFile;
 import org.jetbrains.annotations.Nullable;
 import org.simpleyaml.configuration.comments.CommentType;
 import org.simpleyaml.configuration.file.YamlFile;
@@ -190,16 +189,29 @@ public class DivineConfig {
         @Experimental("Parallel World Ticking")
         public static boolean enableParallelWorldTicking = false;
         public static int parallelThreadCount = 4;
+        public static boolean parallelLongestFirst = false;
         public static boolean logContainerCreationStacktraces = false;
         public static boolean disableHardThrow = false;
         public static boolean usePerWorldTpsBar = true;
         public static boolean showTPSOfServerInsteadOfWorld = true;
 
+        // Idle world ticking settings
+        public static int idleWorldTickInterval = 1;
+        public static int idleWorldGraceTicks = 300;
+
         // Regionized chunk ticking
         @Experimental("Regionized Chunk Ticking")
         public static boolean enableRegionizedChunkTicking = false;
         public static int regionizedChunkTickingExecutorThreadCount = 4;
         public static int regionizedChunkTickingExecutorThreadPriority = Thread.NORM_PRIORITY + 2;
+        public static int regionizedChunkTickingSplitTileSize = 8;
+        public static boolean regionizedChunkTickingBlockEntities = true;
+
+        // CPU budget settings
+        @Experimental("CPU Budget")
+        public static boolean cpuBudgetEnabled = false;
+        public static int cpuBudgetReservedThreads = 2;
+        public static int cpuBudgetIntervalSeconds = 5;
 
         // Async pathfinding settings
         public static boolean asyncPathfinding = true;
@@ -207,10 +219,21 @@ public class DivineConfig {
         public static int asyncPathfindingKeepalive = 60;
         public static int asyncPathfindingQueueSize = 0;
         public static PathfindTaskRejectPolicy asyncPathfindingRejectPolicy = PathfindTaskRejectPolicy.FLUSH_ALL;
+        public static boolean asyncPathfindingResultCache = true;
+        public static int asyncPathfindingResultCacheExpireTicks = 20;
+        public static int asyncPathfindingResultCacheMaxEntries = 1024;
 
         // Multithreaded tracker settings
         public static boolean multithreadedEnabled = true;
         public static boolean multithreadedCompatModeEnabled = false;
+        public static boolean multithreadedBundlePackets = true;
+        public static boolean trackerDistanceTiersEnabled = true;
+        public static int trackerFullRateDistance = 16;
+        public static int trackerFullRateDistanceSquared;
+        public static int trackerReducedRateDistance = 48;
+        public static int trackerReducedRateDistanceSquared;
+        public static int trackerReducedRateInterval = 2;
+        public static int trackerFarInterval = 4;
         public static int asyncEntityTrackerMaxThreads = 1;
         public static int asyncEntityTrackerKeepalive = 60;
         public static int asyncEntityTrackerQueueSize = 0;
@@ -225,7 +248,9 @@ public class DivineConfig {
 
         public static void load() {
             parallelWorldTicking();
+            idleWorldTicking();
             regionizedChunkTicking();
+            cpuBudget();
             asyncPathfinding();
             multithreadedTracker();
             asyncChunkSending();
@@ -238,6 +263,9 @@ public class DivineConfig {
                 "",
                 "Read more info about this feature at https://bxteam.org/docs/divinemc/features/parallel-world-ticking");
             parallelThreadCount = getInt(ConfigCategory.ASYNC.key("parallel-world-ticking.thread-count"), parallelThreadCount);
+            parallelLongestFirst = getBoolean(ConfigCategory.ASYNC.key("parallel-world-ticking.longest-first"), parallelLongestFirst,
+                "Starts the worlds that took the longest to tick last time first. Only matters when there are more worlds than threads,",
+                "it keeps the slowest world from waiting for a thread behind faster ones. Changes the order worlds tick in, which plugins may rely on.");
             logContainerCreationStacktraces = getBoolean(ConfigCategory.ASYNC.key("parallel-world-ticking.log-container-creation-stacktraces"), logContainerCreationStacktraces);
             disableHardThrow = getBoolean(ConfigCategory.ASYNC.key("parallel-world-ticking.disable-hard-throw"), disableHardThrow,
                 "Disables annoying 'not on main thread' throws. But, THIS IS NOT RECOMMENDED because you SHOULD FIX THE ISSUES THEMSELVES instead of RISKING DATA CORRUPTION! If you lose something, take the blame on yourself.");
@@ -247,6 +275,24 @@ public class DivineConfig {
                 "Enables showing the TPS of the entire server instead of the world in the TPS bar.");
         }
 
+        private static void idleWorldTicking() {
+            idleWorldTickInterval = getInt(ConfigCategory.ASYNC.key("idle-world-ticking.tick-interval"), idleWorldTickInterval,
+                "Ticks worlds without players only every this many server ticks, 1 ticks them every tick like vanilla.",
+                "Enable the day time acceleration of lag compensation to keep the day length of these worlds.");
+            idleWorldGraceTicks = getInt(ConfigCategory.ASYNC.key("idle-world-ticking.grace-ticks"), idleWorldGraceTicks,
+                "How many ticks a world keeps ticking normally after the last player left it.");
+
+            if (idleWorldTickInterval < 1) {
+                LOGGER.warn("Invalid idle world tick interval: {}, resetting to default (1)", idleWorldTickInterval);
+                idleWorldTickInterval = 1;
+            }
+
+            if (idleWorldGraceTicks < 0) {
+                LOGGER.warn("Invalid idle world grace ticks: {}, resetting to default (300)", idleWorldGraceTicks);
+                idleWorldGraceTicks = 300;
+            }
+        }
+
         private static void regionizedChunkTicking() {
             enableRegionizedChunkTicking = getBoolean(ConfigCategory.ASYNC.key("regionized-chunk-ticking.enable"), enableRegionizedChunkTicking,
                 "Enables regionized chunk ticking, similar to like Folia works.",
@@ -257,11 +303,45 @@ public class DivineConfig {
                 "The amount of threads to allocate to regionized chunk ticking.");
             regionizedChunkTickingExecutorThreadPriority = getInt(ConfigCategory.ASYNC.key("regionized-chunk-ticking.executor-thread-priority"), regionizedChunkTickingExecutorThreadPriority,
                 "Configures the thread priority of the executor");
+            regionizedChunkTickingSplitTileSize = getInt(ConfigCategory.ASYNC.key("regionized-chunk-ticking.split-tile-size"), regionizedChunkTickingSplitTileSize,
+                "The size in chunks of the tiles a region is split into when it would take longer to tick than the other regions combined can keep the threads busy.",
+                "Tiles are ticked in four passes so that tiles ticking at the same time are always at least one tile apart. Set to 0 to never split regions.",
+                "Must be at least 7 chunks, so tiles ticking at the same time are further apart than any mob follows its target (100 blocks for ghasts).");
+            regionizedChunkTickingBlockEntities = getBoolean(ConfigCategory.ASYNC.key("regionized-chunk-ticking.tick-block-entities"), regionizedChunkTickingBlockEntities,
+                "Ticks block entities like hoppers and furnaces on the region threads together with the chunks they are in.",
+                "Block entities outside of player regions, and the ones reaching further than their neighbours like beacons, conduits,",
+                "sculk sensors and spawners, are still ticked on the world thread.");
 
             if (regionizedChunkTickingExecutorThreadCount < 1 || regionizedChunkTickingExecutorThreadCount > 10) {
                 LOGGER.warn("Invalid regionized chunk ticking thread count: {}, resetting to default (4)", regionizedChunkTickingExecutorThreadCount);
                 regionizedChunkTickingExecutorThreadCount = 4;
             }
+
+            if (regionizedChunkTickingSplitTileSize < 0 || (regionizedChunkTickingSplitTileSize > 0 && regionizedChunkTickingSplitTileSize < 7)) {
+                LOGGER.warn("Invalid regionized chunk ticking split tile size: {}, resetting to default (8)", regionizedChunkTickingSplitTileSize);
+                regionizedChunkTickingSplitTileSize = 8;
+            }
+        }
+
+        private static void cpuBudget() {
+            cpuBudgetEnabled = getBoolean(ConfigCategory.ASYNC.key("cpu-budget.enable"), cpuBudgetEnabled,
+                "Resizes the region ticking, parallel world ticking, async entity tracker and async pathfinding pools at runtime",
+                "from how busy they are and how long the ticks take, so that together they never use more threads than the budget.",
+                "The configured thread counts of these pools become their maximums. Check the current sizes with /divinemc budget.");
+            cpuBudgetReservedThreads = getInt(ConfigCategory.ASYNC.key("cpu-budget.reserved-threads"), cpuBudgetReservedThreads,
+                "The amount of cores left to the server thread and the chunk system workers, the pools share the rest.");
+            cpuBudgetIntervalSeconds = getInt(ConfigCategory.ASYNC.key("cpu-budget.interval-seconds"), cpuBudgetIntervalSeconds,
+                "How often the pools are measured and resized, each pool grows by at most one thread per interval.");
+
+            if (cpuBudgetReservedThreads < 0) {
+                LOGGER.warn("Invalid CPU budget reserved threads: {}, resetting to default (2)", cpuBudgetReservedThreads);
+                cpuBudgetReservedThreads = 2;
+            }
+
+            if (cpuBudgetIntervalSeconds < 1) {
+                LOGGER.warn("Invalid CPU budget interval: {}, resetting to default (5)", cpuBudgetIntervalSeconds);
+                cpuBudgetIntervalSeconds = 5;
+            }
         }
 
         private static void asyncPathfinding() {
@@ -289,6 +369,25 @@ public class DivineConfig {
                 "The policy to use when the queue is full and a new task is submitted.",
                 "FLUSH_ALL: All pending tasks will be run on server thread.",
                 "CALLER_RUNS: Newly submitted task will be run on server thread."));
+
+            asyncPathfindingResultCache = getBoolean(ConfigCategory.ASYNC.key("pathfinding.result-cache.enabled"), asyncPathfindingResultCache,
+                "Shares the paths found for mobs of the same type, size and pathfinding penalties that search from the same block to the same targets,",
+                "so a herd chasing the same player or villagers walking to the same point only search once.",
+                "Cached paths are dropped once expired or when a block changes in a chunk they cross.");
+            asyncPathfindingResultCacheExpireTicks = getInt(ConfigCategory.ASYNC.key("pathfinding.result-cache.expire-ticks"), asyncPathfindingResultCacheExpireTicks,
+                "How long a found path is reused for, in ticks.");
+            asyncPathfindingResultCacheMaxEntries = getInt(ConfigCategory.ASYNC.key("pathfinding.result-cache.max-entries"), asyncPathfindingResultCacheMaxEntries,
+                "Maximum amount of paths kept per world, the oldest are dropped first.");
+
+            if (asyncPathfindingResultCacheExpireTicks < 1) {
+                LOGGER.warn("Invalid pathfinding result cache expire ticks: {}, resetting to default (20)", asyncPathfindingResultCacheExpireTicks);
+                asyncPathfindingResultCacheExpireTicks = 20;
+            }
+
+            if (asyncPathfindingResultCacheMaxEntries < 1) {
+                LOGGER.warn("Invalid pathfinding result cache max entries: {}, resetting to default (1024)", asyncPathfindingResultCacheMaxEntries);
+                asyncPathfindingResultCacheMaxEntries = 1024;
+            }
         }
 
         private static void multithreadedTracker() {
@@ -299,6 +398,9 @@ public class DivineConfig {
                 "Enable compat mode ONLY if Citizens or NPC plugins using real entity has installed.",
                 "Compat mode fixes visible issues with player type NPCs of Citizens.",
                 "But we recommend to use packet based / virtual entity NPC plugin, e.g. ZNPC Plus, Adyeshach, Fancy NPC and etc.");
+            multithreadedBundlePackets = getBoolean(ConfigCategory.ASYNC.key("multithreaded-tracker.bundle-packets"), multithreadedBundlePackets,
+                "Sends the entity updates a tracker thread produces for a player in one bundle packet instead of one packet each,",
+                "which cuts the per-packet overhead when many entities are in view. Disable if a plugin or proxy mishandles bundles.");
 
             asyncEntityTrackerMaxThreads = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.max-threads"), asyncEntityTrackerMaxThreads);
             asyncEntityTrackerKeepalive = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.keepalive"), asyncEntityTrackerKeepalive);
@@ -317,6 +419,44 @@ public class DivineConfig {
             }
 
             if (asyncEntityTrackerQueueSize <= 0) asyncEntityTrackerQueueSize = asyncEntityTrackerMaxThreads * 384;
+
+            trackerDistanceTiers();
+        }
+
+        private static void trackerDistanceTiers() {
+            trackerDistanceTiersEnabled = getBoolean(ConfigCategory.ASYNC.key("multithreaded-tracker.distance-tiers.enabled"), trackerDistanceTiersEnabled,
+                "Sends the movement of entities far away from every player that tracks them less often, other updates are sent as usual.",
+                "Players, vehicles and entities close to any player always move at their normal rate.");
+            trackerFullRateDistance = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.distance-tiers.full-rate-distance"), trackerFullRateDistance,
+                "Entities closer than this many blocks to a tracking player send their movement at their normal rate.");
+            trackerReducedRateDistance = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.distance-tiers.reduced-rate-distance"), trackerReducedRateDistance,
+                "Entities closer than this many blocks to a tracking player send their movement at most every reduced-rate-interval ticks,",
+                "entities farther away at most every far-interval ticks.");
+            trackerReducedRateInterval = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.distance-tiers.reduced-rate-interval"), trackerReducedRateInterval);
+            trackerFarInterval = getInt(ConfigCategory.ASYNC.key("multithreaded-tracker.distance-tiers.far-interval"), trackerFarInterval);
+
+            if (trackerFullRateDistance < 0) {
+                LOGGER.warn("Invalid tracker full rate distance: {}, resetting to default (16)", trackerFullRateDistance);
+                trackerFullRateDistance = 16;
+            }
+
+            if (trackerReducedRateDistance < trackerFullRateDistance) {
+                LOGGER.warn("Invalid tracker reduced rate distance: {}, resetting to full rate distance ({})", trackerReducedRateDistance, trackerFullRateDistance);
+                trackerReducedRateDistance = trackerFullRateDistance;
+            }
+
+            if (trackerReducedRateInterval < 1) {
+                LOGGER.warn("Invalid tracker reduced rate interval: {}, resetting to default (2)", trackerReducedRateInterval);
+                trackerReducedRateInterval = 2;
+            }
+
+            if (trackerFarInterval < 1) {
+                LOGGER.warn("Invalid tracker far interval: {}, resetting to default (4)", trackerFarInterval);
+                trackerFarInterval = 4;
+            }
+
+            trackerFullRateDistanceSquared = trackerFullRateDistance * trackerFullRateDistance;
+            trackerReducedRateDistanceSquared = trackerReducedRateDistance * trackerReducedRateDistance;
         }
 
         private static void asyncChunkSending() {
@@ -624,6 +764,13 @@ public class DivineConfig {
         public static int linearIoThreadCount = 6;
         public static int linearIoFlushDelayMs = 100;
         public static boolean linearUseVirtualThreads = true;
+        public static int linearBucketCacheMb = 64;
+        public static boolean bufferedRegionMmapReads = true;
+        public static boolean bufferedRegionUseDictionary = true;
+        public static int bufferedCompactionBudgetKb = 1024;
+        public static int regionWriteBackBandwidthMb = 0;
+        public static boolean regionLazyMigration = true;
+        public static int chunkReadCacheMb = 0;
 
         // Sentry
         public static String sentryDsn = "";
@@ -695,22 +842,60 @@ public class DivineConfig {
             linearCompressionLevel = getInt(ConfigCategory.MISC.key("region-format.compression-level"), linearCompressionLevel,
                 "The compression level to use for the linear region file format.");
             linearIoThreadCount = getInt(ConfigCategory.MISC.key("region-format.linear-io-thread-count"), linearIoThreadCount,
-                "The number of threads to use for IO operations.");
+                "The number of threads the LINEAR and B_LINEAR write-back scheduler uses for IO operations.");
             linearIoFlushDelayMs = getInt(ConfigCategory.MISC.key("region-format.linear-io-flush-delay-ms"), linearIoFlushDelayMs,
-                "The delay in milliseconds to wait before flushing IO operations.");
+                "The write-back window in milliseconds. Dirty region files are written back in one batch per window",
+                "and synced to disk once per window, however often they were written in between.");
             linearUseVirtualThreads = getBoolean(ConfigCategory.MISC.key("region-format.linear-use-virtual-threads"), linearUseVirtualThreads,
                 "Whether to use virtual threads for IO operations that was introduced in Java 21.");
+            linearBucketCacheMb = getInt(ConfigCategory.MISC.key("region-format.linear-bucket-cache-mb"), linearBucketCacheMb,
+                "How many MiB of decompressed buckets the LINEAR format keeps in memory, shared by all region files.",
+                "Reading a chunk only decompresses its bucket, this keeps recently used buckets around for their neighbours.");
+            bufferedRegionMmapReads = getBoolean(ConfigCategory.MISC.key("region-format.buffered-mmap-reads"), bufferedRegionMmapReads,
+                "Whether the B_LINEAR format should serve chunk reads from a memory-mapped view of the region file.",
+                "Reads are lock-free either way, this only avoids a read syscall per chunk. Ignored on Windows.");
+            bufferedRegionUseDictionary = getBoolean(ConfigCategory.MISC.key("region-format.buffered-use-dictionary"), bufferedRegionUseDictionary,
+                "Whether the B_LINEAR format should compress new chunks with the trained Zstd dictionary of the region folder.",
+                "Dictionaries are trained with /divinemc traindict <world>. Chunks already written with a dictionary stay readable when this is disabled.");
+            bufferedCompactionBudgetKb = getInt(ConfigCategory.MISC.key("region-format.buffered-compaction-budget-kb"), bufferedCompactionBudgetKb,
+                "How many KiB of chunk data the B_LINEAR format may move per background flush to fill holes left by rewritten chunks.",
+                "Compaction happens in place a few chunks at a time, set to 0 to only reuse free space without moving chunks.");
+            regionWriteBackBandwidthMb = getInt(ConfigCategory.MISC.key("region-format.write-back-bandwidth-mb"), regionWriteBackBandwidthMb,
+                "The maximum MiB per second the write-back scheduler writes before deferring the remaining region files to the next window.",
+                "Set to 0 to disable the limit. Queue depth and latency can be checked with /divinemc regionio.");
+            regionLazyMigration = getBoolean(ConfigCategory.MISC.key("region-format.lazy-migration"), regionLazyMigration,
+                "Region files in another format than the configured type are always readable.",
+                "When enabled, such a region is rewritten in the configured type the first time one of its chunks is saved,",
+                "otherwise it keeps its format. This allows switching the type without converting the world first.");
+            chunkReadCacheMb = getInt(ConfigCategory.MISC.key("region-format.chunk-read-cache-mb"), chunkReadCacheMb,
+                "How many MiB of decompressed chunk data to keep for chunks that are read again soon after,",
+                "e.g. when players move back and forth across the view distance. Works with every region format, set to 0 to disable.",
+                "The data is kept on the Java heap, so raise -Xmx by the same amount when enabling it.");
+
+            if (regionWriteBackBandwidthMb < 0) {
+                LOGGER.warn("Invalid region write-back bandwidth: {}, resetting to default (0)", regionWriteBackBandwidthMb);
+                regionWriteBackBandwidthMb = 0;
+            }
+
+            if (chunkReadCacheMb < 0) {
+                LOGGER.warn("Invalid chunk read cache size: {}, resetting to default (0)", chunkReadCacheMb);
+                chunkReadCacheMb = 0;
+            }
+
+            if (linearBucketCacheMb < 0) {
+                LOGGER.warn("Invalid linear bucket cache size: {}, resetting to default (64)", linearBucketCacheMb);
+                linearBucketCacheMb = 64;
+            }
+
+            if (bufferedCompactionBudgetKb < 0) {
+                LOGGER.warn("Invalid buffered compaction budget: {}, resetting to default (1024)", bufferedCompactionBudgetKb);
+                bufferedCompactionBudgetKb = 1024;
+            }
 
             if (linearCompressionLevel > 22 || linearCompressionLevel < 1) {
                 LOGGER.warn("Invalid linear compression level: {}, resetting to default (1)", linearCompressionLevel);
                 linearCompressionLevel = 1;
             }
-
-            if (regionFileType == EnumRegionFileExtension.LINEAR) {
-                LinearRegionFile.SAVE_DELAY_MS = linearIoFlushDelayMs;
-                LinearRegionFile.SAVE_THREAD_MAX_COUNT = linearIoThreadCount;
-                LinearRegionFile.USE_VIRTUAL_THREAD = linearUseVirtualThreads;
-            }
         }
 
         private static void sentrySettings() {
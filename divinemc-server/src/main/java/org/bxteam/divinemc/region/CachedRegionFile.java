@@ -0,0 +1,229 @@
+package org.bxteam.divinemc.region;
+
+import ca.spottedleaf.moonrise.patches.chunk_system.io.MoonriseRegionFileIO;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Serves chunk reads of a region file from the {@link ChunkReadCache}, keeping it up to date on writes.
+ */
+public final class CachedRegionFile implements IRegionFile {
+    private final IRegionFile delegate;
+    private final Path folder;
+
+    public CachedRegionFile(@NotNull IRegionFile delegate, @NotNull Path folder) {
+        this.delegate = delegate;
+        this.folder = folder.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Wraps the given region file if the chunk read cache is enabled.
+     */
+    public static @NotNull IRegionFile wrap(@NotNull IRegionFile regionFile, @NotNull Path folder) {
+        return ChunkReadCache.isEnabled() ? new CachedRegionFile(regionFile, folder) : regionFile;
+    }
+
+    @Override
+    public Path getPath() {
+        return this.delegate.getPath();
+    }
+
+    @Override
+    public DataInputStream getChunkDataInputStream(ChunkPos pos) throws IOException {
+        final long chunk = pos.toLong();
+        final byte[] cached = ChunkReadCache.get(this.folder, chunk);
+        if (cached != null) {
+            return new DataInputStream(new ByteArrayInputStream(cached));
+        }
+
+        final long epoch = ChunkReadCache.readEpoch(this.folder, chunk);
+        final byte[] data;
+        try (DataInputStream in = this.delegate.getChunkDataInputStream(pos)) {
+            if (in == null) {
+                return null;
+            }
+
+            data = in.readAllBytes();
+        }
+
+        ChunkReadCache.putRead(this.folder, chunk, data, epoch);
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public boolean doesChunkExist(ChunkPos pos) throws Exception {
+        return this.delegate.doesChunkExist(pos);
+    }
+
+    @Override
+    public DataOutputStream getChunkDataOutputStream(ChunkPos pos) throws IOException {
+        final DataOutputStream out = this.delegate.getChunkDataOutputStream(pos);
+        return new DataOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte @NotNull [] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                final long chunk = pos.toLong();
+                ChunkReadCache.invalidate(CachedRegionFile.this.folder, chunk);
+                try {
+                    super.close();
+                } finally {
+                    ChunkReadCache.invalidate(CachedRegionFile.this.folder, chunk);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.delegate.flush();
+    }
+
+    @Override
+    public void clear(ChunkPos pos) throws IOException {
+        final long chunk = pos.toLong();
+        ChunkReadCache.invalidate(this.folder, chunk);
+        try {
+            this.delegate.clear(pos);
+        } finally {
+            ChunkReadCache.invalidate(this.folder, chunk);
+        }
+    }
+
+    @Override
+    public boolean hasChunk(ChunkPos pos) {
+        return this.delegate.hasChunk(pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.delegate.close();
+        } finally {
+            this.invalidateAll();
+        }
+    }
+
+    private void invalidateAll() {
+        // region files are named r.<x>.<z>.<extension>
+        final String[] name = this.delegate.getPath().getFileName().toString().split("\\.");
+        if (name.length >= 3) {
+            try {
+                ChunkReadCache.invalidateRegion(this.folder, Integer.parseInt(name[1]), Integer.parseInt(name[2]));
+                return;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        ChunkReadCache.invalidateFolder(this.folder);
+    }
+
+    @Override
+    public void write(ChunkPos pos, ByteBuffer buf) throws IOException {
+        final long chunk = pos.toLong();
+        ChunkReadCache.invalidate(this.folder, chunk);
+        try {
+            this.delegate.write(pos, buf);
+        } finally {
+            ChunkReadCache.invalidate(this.folder, chunk);
+        }
+    }
+
+    @Override
+    public CompoundTag getOversizedData(int x, int z) throws IOException {
+        return this.delegate.getOversizedData(x, z);
+    }
+
+    @Override
+    public boolean isOversized(int x, int z) {
+        return this.delegate.isOversized(x, z);
+    }
+
+    @Override
+    public boolean recalculateHeader() throws IOException {
+        return this.delegate.recalculateHeader();
+    }
+
+    @Override
+    public void setOversized(int x, int z, boolean oversized) throws IOException {
+        this.delegate.setOversized(x, z, oversized);
+    }
+
+    @Override
+    public int getRecalculateCount() {
+        return this.delegate.getRecalculateCount();
+    }
+
+    @Override
+    public MoonriseRegionFileIO.RegionDataController.WriteData moonrise$startWrite(CompoundTag data, ChunkPos pos) throws IOException {
+        final MoonriseRegionFileIO.RegionDataController.WriteData writeData = this.delegate.moonrise$startWrite(data, pos);
+        if (writeData.result() != MoonriseRegionFileIO.RegionDataController.WriteData.WriteResult.WRITE || writeData.output() == null) {
+            return writeData;
+        }
+
+        // capture the uncompressed payload on its way to the region file, it becomes the cached copy once written
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(new TeeOutputStream(writeData.output(), payload));
+
+        return new MoonriseRegionFileIO.RegionDataController.WriteData(
+            writeData.input(), writeData.result(), output, regionFile -> {
+                final long chunk = pos.toLong();
+                ChunkReadCache.invalidate(this.folder, chunk);
+                try {
+                    writeData.write().run(regionFile);
+                } catch (IOException | RuntimeException ex) {
+                    ChunkReadCache.invalidate(this.folder, chunk);
+                    throw ex;
+                }
+
+                ChunkReadCache.putWritten(this.folder, chunk, payload.toByteArray());
+            }
+        );
+    }
+
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream copy;
+
+        private TeeOutputStream(OutputStream out, ByteArrayOutputStream copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.copy.write(b);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.bxteam.divinemc.region;
+
+import net.minecraft.world.level.ChunkPos;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Byte-bounded cache of decompressed chunk payloads shared by all region files.
+ *
+ * <p>Chunks are keyed by their region folder and position. The entries of a region file are dropped when
+ * it is closed, and the entries of a whole folder when its storage is closed on world unload, so nothing is
+ * served from a file that may have been replaced in the meantime. Writes replace the cached payload and
+ * deletes invalidate it. A read only populates the cache if no write hit the same segment while the
+ * chunk was being read, so a slow read can never overwrite newer data.
+ *
+ * <p>Payloads are kept on the heap as they are passed in and handed out without copying, neither the cache
+ * nor its callers ever write to a cached array.
+ */
+public final class ChunkReadCache {
+    private static final int SEGMENT_COUNT = 32;
+    private static final Segment[] SEGMENTS = new Segment[SEGMENT_COUNT];
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    static {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            SEGMENTS[i] = new Segment();
+        }
+    }
+
+    private ChunkReadCache() {
+    }
+
+    public static boolean isEnabled() {
+        return DivineConfig.MiscCategory.chunkReadCacheMb > 0;
+    }
+
+    private static Segment segment(Key key) {
+        return SEGMENTS[(key.hashCode() & Integer.MAX_VALUE) % SEGMENT_COUNT];
+    }
+
+    /**
+     * @return the cached payload, which must not be modified, or {@code null} on a miss
+     */
+    public static byte @Nullable [] get(@NotNull Path folder, long chunk) {
+        final Key key = new Key(folder, chunk);
+        final byte[] data = segment(key).get(key);
+
+        (data != null ? HITS : MISSES).incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Returns the current write epoch of the segment of a chunk, to be passed to {@link #putRead} after reading it.
+     */
+    public static long readEpoch(@NotNull Path folder, long chunk) {
+        return segment(new Key(folder, chunk)).epoch;
+    }
+
+    public static void putRead(@NotNull Path folder, long chunk, byte @NotNull [] data, long epoch) {
+        final Key key = new Key(folder, chunk);
+        segment(key).put(key, data, epoch);
+    }
+
+    public static void putWritten(@NotNull Path folder, long chunk, byte @NotNull [] data) {
+        final Key key = new Key(folder, chunk);
+        final Segment segment = segment(key);
+
+        synchronized (segment) {
+            segment.epoch++;
+            segment.put(key, data, segment.epoch);
+        }
+    }
+
+    public static void invalidate(@NotNull Path folder, long chunk) {
+        final Key key = new Key(folder, chunk);
+        segment(key).invalidate(key);
+    }
+
+    /**
+     * Drops the cached chunks of the region file at the given region coordinates.
+     */
+    public static void invalidateRegion(@NotNull Path folder, int regionX, int regionZ) {
+        final Path normalized = folder.toAbsolutePath().normalize();
+        for (Segment segment : SEGMENTS) {
+            segment.invalidateIf(key -> key.folder().equals(normalized)
+                && ChunkPos.getX(key.chunk()) >> 5 == regionX && ChunkPos.getZ(key.chunk()) >> 5 == regionZ);
+        }
+    }
+
+    /**
+     * Drops every cached chunk of a region folder, called when its storage is closed.
+     */
+    public static void invalidateFolder(@NotNull Path folder) {
+        final Path normalized = folder.toAbsolutePath().normalize();
+        for (Segment segment : SEGMENTS) {
+            segment.invalidateIf(key -> key.folder().equals(normalized));
+        }
+    }
+
+    public static @NotNull Metrics metrics() {
+        long bytes = 0L;
+        int entries = 0;
+        for (Segment segment : SEGMENTS) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+                entries += segment.entries.size();
+            }
+        }
+
+        return new Metrics(HITS.get(), MISSES.get(), EVICTIONS.get(), entries, bytes);
+    }
+
+    private record Key(Path folder, long chunk) {
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes = 0L;
+        private volatile long epoch = 0L;
+
+        private synchronized byte @Nullable [] get(Key key) {
+            return this.entries.get(key);
+        }
+
+        private synchronized void put(Key key, byte[] data, long epoch) {
+            if (epoch != this.epoch) {
+                return;
+            }
+
+            final long limit = DivineConfig.MiscCategory.chunkReadCacheMb * 1024L * 1024L / SEGMENT_COUNT;
+            if (data.length > limit) {
+                this.invalidate(key);
+                return;
+            }
+
+            final byte[] previous = this.entries.put(key, data);
+            if (previous != null) {
+                this.bytes -= previous.length;
+            }
+            this.bytes += data.length;
+
+            final Iterator<byte[]> iterator = this.entries.values().iterator();
+            while (this.bytes > limit && iterator.hasNext()) {
+                this.bytes -= iterator.next().length;
+                iterator.remove();
+                EVICTIONS.incrementAndGet();
+            }
+        }
+
+        private synchronized void invalidate(Key key) {
+            this.epoch++;
+
+            final byte[] removed = this.entries.remove(key);
+            if (removed != null) {
+                this.bytes -= removed.length;
+            }
+        }
+
+        private synchronized void invalidateIf(Predicate<Key> filter) {
+            this.epoch++;
+
+            for (Iterator<Map.Entry<Key, byte[]>> iterator = this.entries.entrySet().iterator(); iterator.hasNext(); ) {
+                final Map.Entry<Key, byte[]> entry = iterator.next();
+                if (filter.test(entry.getKey())) {
+                    this.bytes -= entry.getValue().length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public record Metrics(long hits, long misses, long evictions, int entries, long bytes) {
+        public double hitRate() {
+            final long total = this.hits + this.misses;
+            return total == 0L ? 0.0 : (double) this.hits / total;
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package org.bxteam.divinemc.region;
 
 import net.minecraft.world.level.chunk.storage.RegionFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.bxteam.divinemc.config.DivineConfig;
 import org.bxteam.divinemc.region.type.BufferedRegionFile;
 import org.bxteam.divinemc.region.type.LinearRegionFile;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 public enum EnumRegionFileExtension {
     MCA("mca", "mca", (info) -> new RegionFile(info.info(), info.filePath(), info.folder(), info.sync())),
     LINEAR("linear", "linear", (info) -> new LinearRegionFile(info.info(), info.filePath(), info.folder(), info.sync(), DivineConfig.MiscCategory.linearCompressionLevel)),
     B_LINEAR("b_linear", "b_linear", (info) -> new BufferedRegionFile(info.filePath(), DivineConfig.MiscCategory.linearCompressionLevel));
 
+    private static final Logger LOGGER = LogManager.getLogger(EnumRegionFileExtension.class.getSimpleName());
+    private static final Set<Path> WARNED_CONFLICTS = ConcurrentHashMap.newKeySet();
+
     private final String name;
     private final String argument;
     private final IRegionCreateFunction creator;
@@ -32,6 +42,34 @@ public enum EnumRegionFileExtension {
         return null;
     }
 
+    /**
+     * Resolves the file name of a region, preferring the configured format and falling back to a file in another format.
+     * Migrations and conversions only create a file in the configured format once it is complete, so a file in another
+     * format next to it is stale and is left alone.
+     */
+    public static String resolveRegionFileName(Path folder, int regionX, int regionZ) {
+        final EnumRegionFileExtension configured = DivineConfig.MiscCategory.regionFileType;
+        final String prefix = "r." + regionX + "." + regionZ + ".";
+        final boolean configuredExists = Files.exists(folder.resolve(prefix + configured.argument));
+
+        for (EnumRegionFileExtension format : values()) {
+            if (format == configured || !Files.exists(folder.resolve(prefix + format.argument))) {
+                continue;
+            }
+
+            if (!configuredExists) {
+                return prefix + format.argument;
+            }
+
+            if (WARNED_CONFLICTS.add(folder.resolve(prefix + format.argument))) {
+                LOGGER.warn("Region file {} exists next to {}, using the latter. Remove the outdated one of the two",
+                    folder.resolve(prefix + format.argument).toAbsolutePath(), prefix + configured.argument);
+            }
+        }
+
+        return prefix + configured.argument;
+    }
+
     public IRegionCreateFunction getCreator() {
         return this.creator;
     }
@@ -0,0 +1,228 @@
+package org.bxteam.divinemc.region;
+
+import ca.spottedleaf.moonrise.patches.chunk_system.io.MoonriseRegionFileIO;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A region file that exists in another format than the configured one.
+ *
+ * <p>Reads are served from the existing file. The first write copies every chunk into a {@code .migrating}
+ * file in the configured format, syncs it, renames it to the region's file name in the configured format and
+ * deletes the old file before the write is applied, from then on all calls go to the new file. Until the
+ * rename the old file stays authoritative and a leftover {@code .migrating} file is an interrupted migration
+ * that is started over. After the rename the new file is used even if deleting the old one fails. A file in the configured format is never replaced, see
+ * {@link EnumRegionFileExtension#resolveRegionFileName(Path, int, int)}.
+ *
+ * <p>Reads synchronize with the migration so they never hit the closed old file. Once the region is evicted
+ * from the region cache it is reopened in the configured format directly, without this wrapper.
+ */
+public final class MigratingRegionFile implements IRegionFile {
+    private static final Logger LOGGER = LogManager.getLogger(MigratingRegionFile.class.getSimpleName());
+    private static final String MIGRATING_SUFFIX = ".migrating";
+
+    private final EnumRegionFileExtension sourceFormat;
+    private final EnumRegionFileExtension targetFormat;
+    private final RegionFileInfo targetInfo;
+    private final IRegionFile source;
+    private final int regionX;
+    private final int regionZ;
+    private volatile @Nullable IRegionFile migrated;
+
+    private MigratingRegionFile(EnumRegionFileExtension sourceFormat, EnumRegionFileExtension targetFormat, RegionFileInfo sourceInfo, IRegionFile source) {
+        final String[] parts = sourceInfo.filePath().getFileName().toString().split("\\.");
+
+        this.sourceFormat = sourceFormat;
+        this.targetFormat = targetFormat;
+        this.source = source;
+        this.regionX = Integer.parseInt(parts[1]);
+        this.regionZ = Integer.parseInt(parts[2]);
+        this.targetInfo = new RegionFileInfo(sourceInfo.info(), sourceInfo.folder().resolve("r." + this.regionX + "." + this.regionZ + "." + targetFormat.getArgument()), sourceInfo.folder(), sourceInfo.sync());
+    }
+
+    /**
+     * Opens a region file that is in {@code sourceFormat}, migrating it to {@code targetFormat} on its first write
+     * unless lazy migration is disabled, in which case it is opened as is.
+     */
+    public static @NotNull IRegionFile open(@NotNull EnumRegionFileExtension sourceFormat, @NotNull EnumRegionFileExtension targetFormat, @NotNull RegionFileInfo info) throws IOException {
+        final IRegionFile source = sourceFormat.getCreator().create(info);
+        if (!DivineConfig.MiscCategory.regionLazyMigration) {
+            return source;
+        }
+
+        return new MigratingRegionFile(sourceFormat, targetFormat, info, source);
+    }
+
+    private IRegionFile current() {
+        final IRegionFile migrated = this.migrated;
+        return migrated != null ? migrated : this.source;
+    }
+
+    private synchronized IRegionFile migrate() throws IOException {
+        IRegionFile target = this.migrated;
+        if (target != null) {
+            return target;
+        }
+
+        final Path targetPath = this.targetInfo.filePath();
+        final Path migratingPath = targetPath.resolveSibling(targetPath.getFileName() + MIGRATING_SUFFIX);
+        final RegionFileInfo migratingInfo = new RegionFileInfo(this.targetInfo.info(), migratingPath, this.targetInfo.folder(), this.targetInfo.sync());
+        final boolean[] present = new boolean[1024];
+        int chunks = 0;
+
+        if (Files.exists(targetPath)) {
+            throw new IOException("Not migrating region file " + this.source.getPath() + ", " + targetPath.getFileName() + " already exists");
+        }
+
+        // left behind by an interrupted migration, the source is still authoritative
+        Files.deleteIfExists(migratingPath);
+
+        target = this.targetFormat.getCreator().create(migratingInfo);
+        boolean closed = false;
+        try {
+            for (int i = 0; i < 1024; i++) {
+                final ChunkPos pos = new ChunkPos((this.regionX << 5) + (i & 31), (this.regionZ << 5) + (i >> 5));
+                final byte[] data = RegionConverter.readChunk(this.source, pos);
+                if (data == null) {
+                    continue;
+                }
+
+                try (DataOutputStream out = target.getChunkDataOutputStream(pos)) {
+                    out.write(data);
+                }
+
+                present[i] = true;
+                chunks++;
+            }
+
+            target.flush();
+            if (target instanceof RegionWriteBackScheduler.Target writeBackTarget) {
+                writeBackTarget.force();
+            }
+            target.close();
+            closed = true;
+
+            // a rename within the folder, without REPLACE_EXISTING it fails instead of replacing a file created in the meantime
+            if (Files.exists(migratingPath)) {
+                Files.move(migratingPath, targetPath);
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                if (!closed) {
+                    target.close();
+                }
+                Files.deleteIfExists(migratingPath);
+            } catch (IOException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+
+            throw ex;
+        }
+
+        // region files may write through their path, so they are reopened under their final name
+        target = this.targetFormat.getCreator().create(this.targetInfo);
+        this.migrated = target;
+
+        LOGGER.debug("Migrated region file {} with {} chunks to {}", this.source.getPath(), chunks, this.targetFormat);
+
+        // the new file is authoritative from here on, a failing cleanup only leaves the old file behind
+        try {
+            this.source.close();
+            Files.delete(this.source.getPath());
+            if (this.sourceFormat == EnumRegionFileExtension.MCA) {
+                RegionConverter.deleteExternalChunks(this.targetInfo.folder(), this.regionX, this.regionZ, present);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Failed to delete region file {} after migrating it to {}", this.source.getPath(), targetPath.getFileName(), ex);
+        }
+
+        return target;
+    }
+
+    @Override
+    public Path getPath() {
+        return this.current().getPath();
+    }
+
+    @Override
+    public synchronized DataInputStream getChunkDataInputStream(ChunkPos pos) throws IOException {
+        return this.current().getChunkDataInputStream(pos);
+    }
+
+    @Override
+    public synchronized boolean doesChunkExist(ChunkPos pos) throws Exception {
+        return this.current().doesChunkExist(pos);
+    }
+
+    @Override
+    public DataOutputStream getChunkDataOutputStream(ChunkPos pos) throws IOException {
+        return this.migrate().getChunkDataOutputStream(pos);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        this.current().flush();
+    }
+
+    @Override
+    public void clear(ChunkPos pos) throws IOException {
+        this.migrate().clear(pos);
+    }
+
+    @Override
+    public synchronized boolean hasChunk(ChunkPos pos) {
+        return this.current().hasChunk(pos);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.current().close();
+    }
+
+    @Override
+    public void write(ChunkPos pos, ByteBuffer buf) throws IOException {
+        this.migrate().write(pos, buf);
+    }
+
+    @Override
+    public CompoundTag getOversizedData(int x, int z) throws IOException {
+        return this.current().getOversizedData(x, z);
+    }
+
+    @Override
+    public boolean isOversized(int x, int z) {
+        return this.current().isOversized(x, z);
+    }
+
+    @Override
+    public boolean recalculateHeader() throws IOException {
+        return this.current().recalculateHeader();
+    }
+
+    @Override
+    public void setOversized(int x, int z, boolean oversized) throws IOException {
+        this.current().setOversized(x, z, oversized);
+    }
+
+    @Override
+    public int getRecalculateCount() {
+        return this.current().getRecalculateCount();
+    }
+
+    @Override
+    public MoonriseRegionFileIO.RegionDataController.WriteData moonrise$startWrite(CompoundTag data, ChunkPos pos) throws IOException {
+        return this.migrate().moonrise$startWrite(data, pos);
+    }
+}
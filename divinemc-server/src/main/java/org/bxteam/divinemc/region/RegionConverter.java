@@ -0,0 +1,314 @@
+package org.bxteam.divinemc.region;
+
+import joptsimple.OptionSet;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.storage.RegionStorageInfo;
+import net.openhft.hashing.LongHashFunction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.region.type.ZstdDictionaryStore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Converts region files between the {@link EnumRegionFileExtension} formats, one region file per fork-join task.
+ *
+ * <p>Every chunk is hashed when it is read from the source file and written to a {@code .converting} file,
+ * which is verified once closed and then moved in place of the converted file; only then is the source
+ * deleted. An interrupted conversion is resumed by running it again: converted regions no longer have a source
+ * file, and a leftover {@code .converting} file is an unfinished one and gets converted from scratch. A region
+ * that already has a file in the target format is never overwritten, it is skipped and counted as failed.
+ */
+public final class RegionConverter {
+    private static final Logger LOGGER = LogManager.getLogger(RegionConverter.class.getSimpleName());
+    private static final Pattern REGION_FILE = Pattern.compile("^r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.([a-z_]+)$");
+    private static final Set<String> REGION_FOLDERS = Set.of("region", "entities", "poi");
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final String CONVERTING_SUFFIX = ".converting";
+
+    private final EnumRegionFileExtension target;
+    private final Consumer<Progress> progressListener;
+    private final int parallelism;
+
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+    private volatile int filesTotal;
+
+    public RegionConverter(@NotNull EnumRegionFileExtension target, int parallelism, @NotNull Consumer<Progress> progressListener) {
+        this.target = target;
+        this.parallelism = Math.max(1, parallelism);
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Runs the {@code --convert-regions} startup mode, converting every world of the world container
+     * before any of them is loaded.
+     */
+    public static void convertOnStartup(@NotNull OptionSet options) {
+        if (!options.has("convert-regions")) {
+            return;
+        }
+
+        final String argument = (String) options.valueOf("convert-regions");
+        EnumRegionFileExtension target = DivineConfig.MiscCategory.regionFileType;
+        if (argument != null && !argument.isBlank()) {
+            target = EnumRegionFileExtension.fromString(argument);
+            if (target == null) {
+                LOGGER.error("Unknown region format {}, skipping region conversion", argument);
+                return;
+            }
+        }
+
+        final Path worldContainer = ((File) options.valueOf("universe")).toPath();
+        final List<Path> folders;
+        try {
+            folders = findRegionFolders(worldContainer);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to list worlds in {}, skipping region conversion", worldContainer.toAbsolutePath(), ex);
+            return;
+        }
+
+        LOGGER.info("Converting {} region folders to {}...", folders.size(), target);
+        final Progress result = new RegionConverter(target, Runtime.getRuntime().availableProcessors(), progress ->
+            LOGGER.info("Converted {}/{} region files ({} chunks, {} MiB)", progress.filesDone(), progress.filesTotal(), progress.chunks(), progress.bytes() / (1024 * 1024))
+        ).convert(folders);
+
+        LOGGER.info("Region conversion finished: {} files, {} chunks, {} failed", result.filesDone(), result.chunks(), result.filesFailed());
+        if (target != DivineConfig.MiscCategory.regionFileType) {
+            LOGGER.warn("Regions were converted to {} but region-format.type is {}, update divinemc.yml before the worlds are loaded", target, DivineConfig.MiscCategory.regionFileType);
+        }
+    }
+
+    /**
+     * @return every region, entities and poi folder of all worlds in the given world container
+     */
+    public static @NotNull List<Path> findRegionFolders(@NotNull Path worldContainer) throws IOException {
+        final List<Path> folders = new ArrayList<>();
+
+        try (Stream<Path> worlds = Files.list(worldContainer)) {
+            for (Path world : (Iterable<Path>) worlds.filter(path -> Files.isRegularFile(path.resolve("level.dat")))::iterator) {
+                folders.addAll(findRegionFoldersOfWorld(world));
+            }
+        }
+
+        return folders;
+    }
+
+    public static @NotNull List<Path> findRegionFoldersOfWorld(@NotNull Path world) throws IOException {
+        // world/region, world_nether/DIM-1/region and world/dimensions/<namespace>/<name>/region
+        try (Stream<Path> paths = Files.walk(world, 4)) {
+            return paths.filter(path -> Files.isDirectory(path) && REGION_FOLDERS.contains(path.getFileName().toString())).toList();
+        }
+    }
+
+    public @NotNull Progress convert(@NotNull List<Path> folders) {
+        final List<Path> files = new ArrayList<>();
+        for (Path folder : folders) {
+            try (Stream<Path> paths = Files.list(folder)) {
+                paths.filter(this::needsConversion).forEach(files::add);
+            } catch (IOException ex) {
+                LOGGER.error("Failed to list region files in {}", folder.toAbsolutePath(), ex);
+            }
+        }
+
+        this.filesTotal = files.size();
+
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism, forkJoinPool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("Region Converter - " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(files.stream().map(file -> ForkJoinTask.adapt(() -> this.convertFile(file))).toList())).join();
+        } finally {
+            pool.shutdown();
+        }
+
+        final Progress progress = this.progress();
+        this.progressListener.accept(progress);
+        return progress;
+    }
+
+    private boolean needsConversion(Path file) {
+        final EnumRegionFileExtension format = formatOf(file);
+        return format != null && format != this.target && Files.isRegularFile(file);
+    }
+
+    private static @Nullable EnumRegionFileExtension formatOf(Path file) {
+        final Matcher matcher = REGION_FILE.matcher(file.getFileName().toString());
+        return matcher.matches() ? EnumRegionFileExtension.fromString(matcher.group(3)) : null;
+    }
+
+    private void convertFile(Path source) {
+        final Matcher matcher = REGION_FILE.matcher(source.getFileName().toString());
+        if (!matcher.matches()) {
+            return;
+        }
+
+        final int regionX = Integer.parseInt(matcher.group(1));
+        final int regionZ = Integer.parseInt(matcher.group(2));
+        final Path folder = source.getParent();
+        final Path destination = folder.resolve("r." + regionX + "." + regionZ + "." + this.target.getArgument());
+        final Path converting = folder.resolve(destination.getFileName() + CONVERTING_SUFFIX);
+
+        if (Files.exists(destination)) {
+            LOGGER.warn("Not converting region file {}, {} already exists. Remove the outdated one of the two and run the conversion again",
+                source.toAbsolutePath(), destination.getFileName());
+            this.filesFailed.incrementAndGet();
+            this.reportProgress();
+            return;
+        }
+
+        try {
+            // left behind by an interrupted run
+            Files.deleteIfExists(converting);
+
+            final long[] hashes = new long[1024];
+            final boolean[] present = new boolean[1024];
+            int chunkCount = 0;
+            long byteCount = 0L;
+
+            try (IRegionFile in = open(formatOf(source), source)) {
+                IRegionFile out = null;
+                try {
+                    for (int i = 0; i < 1024; i++) {
+                        final ChunkPos pos = new ChunkPos((regionX << 5) + (i & 31), (regionZ << 5) + (i >> 5));
+                        final byte[] data = readChunk(in, pos);
+                        if (data == null) {
+                            continue;
+                        }
+
+                        if (out == null) {
+                            out = open(this.target, converting);
+                        }
+
+                        try (DataOutputStream stream = out.getChunkDataOutputStream(pos)) {
+                            stream.write(data);
+                        }
+
+                        hashes[i] = LongHashFunction.xx().hashBytes(data);
+                        present[i] = true;
+                        chunkCount++;
+                        byteCount += data.length;
+                    }
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+            }
+
+            if (chunkCount > 0) {
+                this.verify(converting, regionX, regionZ, hashes, present);
+                // a rename within the folder, without REPLACE_EXISTING it fails instead of replacing a destination created in the meantime
+                Files.move(converting, destination);
+            }
+
+            Files.delete(source);
+            if (formatOf(source) == EnumRegionFileExtension.MCA) {
+                deleteExternalChunks(folder, regionX, regionZ, present);
+            }
+
+            this.chunks.addAndGet(chunkCount);
+            this.bytes.addAndGet(byteCount);
+            this.filesDone.incrementAndGet();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Failed to convert region file {}, it is left unchanged", source.toAbsolutePath(), ex);
+            this.filesFailed.incrementAndGet();
+
+            try {
+                Files.deleteIfExists(converting);
+            } catch (IOException ignored) {
+            }
+        }
+
+        this.reportProgress();
+    }
+
+    private void verify(Path destination, int regionX, int regionZ, long[] hashes, boolean[] present) throws IOException {
+        try (IRegionFile converted = open(this.target, destination)) {
+            for (int i = 0; i < 1024; i++) {
+                final ChunkPos pos = new ChunkPos((regionX << 5) + (i & 31), (regionZ << 5) + (i >> 5));
+                final byte[] data = readChunk(converted, pos);
+
+                if (present[i] != (data != null) || (data != null && LongHashFunction.xx().hashBytes(data) != hashes[i])) {
+                    throw new IOException("Checksum mismatch for chunk " + pos + " in " + destination);
+                }
+            }
+        }
+    }
+
+    static byte @Nullable [] readChunk(IRegionFile file, ChunkPos pos) throws IOException {
+        if (!file.hasChunk(pos)) {
+            return null;
+        }
+
+        try (DataInputStream stream = file.getChunkDataInputStream(pos)) {
+            return stream == null ? null : stream.readAllBytes();
+        }
+    }
+
+    static void deleteExternalChunks(Path folder, int regionX, int regionZ, boolean[] present) throws IOException {
+        for (int i = 0; i < 1024; i++) {
+            if (present[i]) {
+                Files.deleteIfExists(folder.resolve("c." + ((regionX << 5) + (i & 31)) + "." + ((regionZ << 5) + (i >> 5)) + ".mcc"));
+            }
+        }
+    }
+
+    private static IRegionFile open(EnumRegionFileExtension format, Path file) throws IOException {
+        final Path folder = file.getParent();
+        final RegionStorageInfo info = new RegionStorageInfo(folder.getParent().getFileName().toString(), Level.OVERWORLD, folder.getFileName().toString());
+
+        if (format == EnumRegionFileExtension.B_LINEAR) {
+            ZstdDictionaryStore.forFolder(folder); // pick up trained dictionaries before the first write
+        }
+
+        return format.getCreator().create(new RegionFileInfo(info, file, folder, false));
+    }
+
+    private void reportProgress() {
+        final long now = System.nanoTime();
+        final long last = this.lastProgress.get();
+
+        if (now - last >= PROGRESS_INTERVAL_NANOS && this.lastProgress.compareAndSet(last, now)) {
+            this.progressListener.accept(this.progress());
+        }
+    }
+
+    public @NotNull Progress progress() {
+        return new Progress(this.filesDone.get(), this.filesFailed.get(), this.filesTotal, this.chunks.get(), this.bytes.get());
+    }
+
+    /**
+     * @param bytes uncompressed chunk data converted so far
+     */
+    public record Progress(int filesDone, int filesFailed, int filesTotal, long chunks, long bytes) {
+    }
+}
@@ -0,0 +1,275 @@
+package org.bxteam.divinemc.region;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.config.DivineConfig;
+import org.bxteam.divinemc.util.NamedAgnosticThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared write-back scheduler for the linear region formats.
+ *
+ * <p>Region files only mark themselves dirty; once per window (the configured flush delay) the
+ * scheduler collects every file that has been dirty for at least a full window, writes them back
+ * in parallel and then forces each of them exactly once, no matter how often it was written in
+ * between. An optional bandwidth budget defers the remaining files to the next window once the
+ * bytes written in the current one exceed it.
+ */
+public final class RegionWriteBackScheduler {
+    private static final Logger LOGGER = LogManager.getLogger(RegionWriteBackScheduler.class.getSimpleName());
+    private static final Map<Target, Long> DIRTY = new ConcurrentHashMap<>(); // target -> nanos when first marked dirty
+    private static final Object LOCK = new Object();
+
+    private static volatile Thread schedulerThread;
+    private static volatile ExecutorService workers;
+    private static volatile boolean running = false;
+    private static volatile boolean stopped = false;
+
+    // Metrics
+    private static final AtomicLong BATCHES = new AtomicLong();
+    private static final AtomicLong FILES_WRITTEN = new AtomicLong();
+    private static final AtomicLong FORCES = new AtomicLong();
+    private static final AtomicLong BYTES_WRITTEN = new AtomicLong();
+    private static final AtomicLong DEFERRED = new AtomicLong();
+    private static volatile int lastBatchSize = 0;
+    private static volatile long lastBatchNanos = 0L;
+    private static volatile long averageLatencyNanos = 0L;
+    private static volatile long maxLatencyNanos = 0L;
+
+    private RegionWriteBackScheduler() {
+    }
+
+    /**
+     * A region file that buffers its changes and has them written back by this scheduler.
+     */
+    public interface Target {
+        Path getPath();
+
+        /**
+         * Writes pending changes without forcing them to disk.
+         *
+         * @return the number of bytes written
+         */
+        long writeBack() throws IOException;
+
+        /**
+         * Forces everything written back so far to disk.
+         */
+        void force() throws IOException;
+    }
+
+    public static void markDirty(@NotNull Target target) {
+        if (DIRTY.putIfAbsent(target, System.nanoTime()) == null && !running && !stopped) {
+            start();
+        }
+    }
+
+    /**
+     * Called when a file is closed, which writes back and forces it on its own.
+     */
+    public static void remove(@NotNull Target target) {
+        DIRTY.remove(target);
+    }
+
+    private static void start() {
+        synchronized (LOCK) {
+            if (running || stopped) {
+                return;
+            }
+
+            final int threads = Math.max(1, DivineConfig.MiscCategory.linearIoThreadCount);
+            final ThreadFactory factory = DivineConfig.MiscCategory.linearUseVirtualThreads
+                ? Thread.ofVirtual().name("Region Write-Back Worker - ", 0).factory()
+                : new NamedAgnosticThreadFactory<>("Region Write-Back Worker", (group, runnable, name) -> {
+                    Thread thread = new Thread(group, runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }, Thread.NORM_PRIORITY - 1);
+
+            workers = Executors.newFixedThreadPool(threads, factory);
+            running = true;
+
+            schedulerThread = Thread.ofPlatform()
+                .name("Region Write-Back Scheduler")
+                .daemon(true)
+                .start(RegionWriteBackScheduler::run);
+        }
+    }
+
+    private static void run() {
+        while (running) {
+            final long windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, DivineConfig.MiscCategory.linearIoFlushDelayMs));
+            LockSupport.parkNanos(windowNanos);
+
+            if (!running) {
+                break;
+            }
+
+            try {
+                commitBatch(false, windowNanos);
+            } catch (Throwable throwable) {
+                LOGGER.error("Region write-back batch failed", throwable);
+            }
+        }
+    }
+
+    private static void commitBatch(boolean all, long windowNanos) {
+        final long dirtyBefore = System.nanoTime() - windowNanos;
+        final List<Map.Entry<Target, Long>> due = new ArrayList<>();
+        for (Map.Entry<Target, Long> entry : DIRTY.entrySet()) {
+            if (all || entry.getValue() - dirtyBefore <= 0L) {
+                due.add(Map.entry(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        if (due.isEmpty()) {
+            return;
+        }
+
+        // oldest first, so a bandwidth budget never starves a file
+        due.sort(Comparator.comparingLong(Map.Entry::getValue));
+
+        final long budgetMb = DivineConfig.MiscCategory.regionWriteBackBandwidthMb;
+        final long budgetBytes = budgetMb > 0L && !all ? budgetMb * 1024L * 1024L * windowNanos / TimeUnit.SECONDS.toNanos(1) : Long.MAX_VALUE;
+        final long batchStart = System.nanoTime();
+
+        final List<Map.Entry<Target, Long>> written = new ArrayList<>(due.size());
+        long bytes = 0L;
+
+        // write back in waves of at most one file per worker so the budget is checked between them
+        final int waveSize = Math.max(1, DivineConfig.MiscCategory.linearIoThreadCount);
+        int index = 0;
+        while (index < due.size() && bytes < budgetBytes) {
+            final List<Map.Entry<Target, Long>> wave = due.subList(index, Math.min(due.size(), index + waveSize));
+            index += wave.size();
+
+            final List<CompletableFuture<Long>> futures = new ArrayList<>(wave.size());
+            for (Map.Entry<Target, Long> entry : wave) {
+                // drop the mark before writing, anything written meanwhile re-marks the file for the next window
+                if (!DIRTY.remove(entry.getKey(), entry.getValue())) {
+                    futures.add(CompletableFuture.completedFuture(-1L));
+                    continue;
+                }
+
+                futures.add(CompletableFuture.supplyAsync(() -> writeBack(entry.getKey()), workers));
+            }
+
+            for (int i = 0; i < wave.size(); i++) {
+                final long result = futures.get(i).join();
+                if (result >= 0L) {
+                    bytes += result;
+                    written.add(wave.get(i));
+                }
+            }
+        }
+
+        DEFERRED.addAndGet(due.size() - index);
+
+        // group commit: a single force per file for everything written in this window
+        final List<CompletableFuture<Void>> forces = new ArrayList<>(written.size());
+        for (Map.Entry<Target, Long> entry : written) {
+            forces.add(CompletableFuture.runAsync(() -> force(entry.getKey()), workers));
+        }
+        CompletableFuture.allOf(forces.toArray(CompletableFuture[]::new)).join();
+
+        final long now = System.nanoTime();
+        long maxLatency = 0L;
+        for (Map.Entry<Target, Long> entry : written) {
+            final long latency = now - entry.getValue();
+            averageLatencyNanos = averageLatencyNanos == 0L ? latency : (averageLatencyNanos * 7L + latency) / 8L;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+
+        maxLatencyNanos = maxLatency;
+        lastBatchSize = written.size();
+        lastBatchNanos = now - batchStart;
+        BATCHES.incrementAndGet();
+        FILES_WRITTEN.addAndGet(written.size());
+        FORCES.addAndGet(written.size());
+        BYTES_WRITTEN.addAndGet(bytes);
+    }
+
+    private static long writeBack(Target target) {
+        try {
+            return target.writeBack();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Region file {} write-back failed, retrying in the next window", target.getPath().toAbsolutePath(), ex);
+            DIRTY.putIfAbsent(target, System.nanoTime());
+            return -1L;
+        }
+    }
+
+    private static void force(Target target) {
+        try {
+            target.force();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Region file {} force failed", target.getPath().toAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Writes back everything that is still dirty and stops the scheduler.
+     */
+    public static void shutdown() throws InterruptedException {
+        synchronized (LOCK) {
+            if (!running) {
+                return;
+            }
+
+            running = false;
+            stopped = true;
+            LockSupport.unpark(schedulerThread);
+            schedulerThread.join();
+
+            commitBatch(true, 0L);
+
+            workers.shutdown();
+            //noinspection StatementWithEmptyBody
+            while (!workers.awaitTermination(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public static @NotNull Metrics metrics() {
+        return new Metrics(
+            DIRTY.size(),
+            lastBatchSize,
+            lastBatchNanos,
+            averageLatencyNanos,
+            maxLatencyNanos,
+            BATCHES.get(),
+            FILES_WRITTEN.get(),
+            FORCES.get(),
+            BYTES_WRITTEN.get(),
+            DEFERRED.get()
+        );
+    }
+
+    /**
+     * @param queueDepth files currently waiting for write-back
+     * @param averageLatencyNanos moving average of the time between a file becoming dirty and it being forced
+     * @param maxLatencyNanos highest such latency in the last batch
+     * @param deferred files pushed to a later window by the bandwidth budget
+     */
+    public record Metrics(int queueDepth, int lastBatchSize, long lastBatchNanos, long averageLatencyNanos, long maxLatencyNanos,
+                          long batches, long filesWritten, long forces, long bytesWritten, long deferred) {
+    }
+}
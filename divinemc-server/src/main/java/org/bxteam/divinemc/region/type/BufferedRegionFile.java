@@ -2,73 +2,101 @@ package org.bxteam.divinemc.region.type;
 
 import ca.spottedleaf.concurrentutil.util.ConcurrentUtil;
 import ca.spottedleaf.moonrise.patches.chunk_system.io.MoonriseRegionFileIO;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
 import net.jpountz.xxhash.XXHash32;
 import net.jpountz.xxhash.XXHashFactory;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.world.level.ChunkPos;
-import org.bxteam.divinemc.region.EnumRegionFileExtension;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.bxteam.divinemc.region.IRegionFile;
+import org.bxteam.divinemc.region.RegionWriteBackScheduler;
 import org.bxteam.divinemc.config.DivineConfig;
-import org.bxteam.divinemc.util.NamedAgnosticThreadFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2LongAVLTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongSortedMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 import java.io.*;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.*;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
+import java.util.Comparator;
 
 /**
  * A buffered region file implementation that provides efficient chunk storage and retrieval
- * with compression, checksums, and automatic compaction capabilities.
+ * with compression, checksums, and incremental in-place compaction.
+ *
+ * <p>Reads never take a lock in the common case: every sector is guarded by its own sequence
+ * counter and the file structure (channel, mapping) by a {@link StampedLock}, so a chunk load only
+ * retries when the very sector it reads was rewritten or the file was closed underneath it.
+ * Writers and header flushes are serialized by {@link #writeLock} and never block readers.
+ *
+ * <p>Compression and decompression run directly on per-thread pooled direct buffers, so chunk IO
+ * does not allocate in steady state apart from the array handed out to the chunk loader.
+ *
+ * <p>Since version 2 chunks may be compressed with a trained dictionary of the region folder (see
+ * {@link ZstdDictionaryStore}); the header records the dictionary the file is written with and every
+ * chunk frame carries the id of the dictionary it needs. Version 1 files are upgraded on their first write.
+ *
+ * <p>Space left behind by rewritten or cleared chunks is tracked in a {@link FreeSpaceMap} and reused
+ * best-fit. An extent only becomes reusable once a header no longer referencing it has been written
+ * and forced to disk, so a crash never leaves the on-disk header pointing at overwritten data. Each background flush moves
+ * a bounded amount of chunks from the end of the file into holes, and the file is truncated on close,
+ * so the file never has to be rewritten as a whole.
  *
  * <p>For conversion tools between MCA and buffered region file formats, see:
  * <a href="https://github.com/NONPLAYT/LinearRegionFileFormatTools">LinearRegionFileFormatTools</a>
  */
 @SuppressWarnings({"unused", "FieldMayBeFinal"})
-public class BufferedRegionFile implements IRegionFile {
-    private static final double AUTO_COMPACT_PERCENT = 3.0 / 5.0; // 60%
-    private static final long AUTO_COMPACT_SIZE = 1024 * 1024; // 1 MiB
+public class BufferedRegionFile implements IRegionFile, RegionWriteBackScheduler.Target {
+    private static final double COMPACT_THRESHOLD_PERCENT = 1.0 / 5.0; // 20%
+    private static final long COMPACT_THRESHOLD_SIZE = 256 * 1024; // 256 KiB
     private static final long SUPER_BLOCK = 0x1145141919810L;
     private static final int HASH_SEED = 0x0721;
-    private static final byte VERSION = 0x01; // Version 1
+    private static final byte VERSION = 0x02; // Version 2
+    private static final byte VERSION_NO_DICTIONARY = 0x01; // Version 1, before trained dictionaries
+    private static final int CHUNK_HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES; // Uncompressed length, timestamp, xxHash32
+    private static final Logger LOGGER = LogManager.getLogger(BufferedRegionFile.class.getSimpleName());
+    private static final ThreadLocal<IoBuffers> IO_BUFFERS = ThreadLocal.withInitial(IoBuffers::new);
 
     private final Path filePath;
-    private final ReadWriteLock fileAccessLock = new ReentrantReadWriteLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final StampedLock structureLock = new StampedLock();
+    private final Object mappingLock = new Object();
     private final XXHash32 xxHash32 = XXHashFactory.fastestInstance().hash32();
     private final Sector[] sectors = new Sector[1024];
     private final AtomicInteger recalculateCount = new AtomicInteger(0);
+    private final ZstdDictionaryStore dictionaryStore;
+    private volatile byte formatVersion = VERSION;
+    private int dictionaryId = 0;
     private long currentAcquiredIndex = this.headerSize();
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+    private final LongArrayList pendingFree = new LongArrayList(); // offset, length pairs
+    private final LongArrayList unforcedFree = new LongArrayList(); // offset, length pairs no written header refers to, not yet forced
     private byte compressionLevel = 6;
     private int xxHash32Seed = HASH_SEED;
-    private FileChannel channel;
-    private boolean closed = false;
+    // mapped files cannot be truncated on Windows while the mapping is alive, which close relies on
+    private final boolean mmapReads = DivineConfig.MiscCategory.bufferedRegionMmapReads && net.minecraft.Util.getPlatform() != net.minecraft.Util.OS.WINDOWS;
+    private volatile FileChannel channel;
+    private volatile MappedByteBuffer mappedData;
+    private volatile boolean closed = false;
 
     private volatile boolean synced = true;
-    private volatile boolean beingSynced = false;
-    private volatile long lastWritten = 0L;
-
-    private static final Set<BufferedRegionFile> MANAGED_FILES = new ObjectLinkedOpenHashSet<>();
-    private static volatile ScheduledFuture<?> flusherChecker;
-    private static volatile Executor ioWorkerPool;
-    private static final Object FLUSHER_LOCK = new Object();
-    public static volatile boolean flusherInitialized = false;
+    private long bytesSinceWriteBack = 0L;
 
     private static final VarHandle SYNCED_HANDLE = ConcurrentUtil.getVarHandle(BufferedRegionFile.class, "synced", boolean.class);
-    private static final VarHandle BEING_SYNCED_HANDLE = ConcurrentUtil.getVarHandle(BufferedRegionFile.class, "beingSynced", boolean.class);
-    private static final VarHandle LAST_WRITTEN_HANDLE = ConcurrentUtil.getVarHandle(BufferedRegionFile.class, "lastWritten", long.class);
 
     public BufferedRegionFile(Path filePath, int compressionLevel) throws IOException {
         this(filePath);
@@ -76,6 +104,7 @@ public class BufferedRegionFile implements IRegionFile {
     }
 
     public BufferedRegionFile(Path filePath) throws IOException {
+        this.dictionaryStore = ZstdDictionaryStore.forFolder(filePath.toAbsolutePath().getParent());
         this.channel = FileChannel.open(
             filePath,
             StandardOpenOption.CREATE,
@@ -88,197 +117,92 @@ public class BufferedRegionFile implements IRegionFile {
             this.sectors[i] = new Sector(i, this.headerSize(), 0);
         }
 
-        this.readHeaders();
-
-        if (DivineConfig.MiscCategory.regionFileType == EnumRegionFileExtension.B_LINEAR) initializeFlusherIfNeeded();
-        addToFlusherManagement();
+        try {
+            this.readHeaders();
+        } catch (IOException | RuntimeException ex) {
+            this.channel.close();
+            throw ex;
+        }
     }
 
-    private static void initializeFlusherIfNeeded() {
-        if (flusherInitialized) return;
-
-        synchronized (FLUSHER_LOCK) {
-            if (flusherInitialized) {
-                return;
-            }
-
-            final int nIoThreads = DivineConfig.MiscCategory.linearIoThreadCount;
-            final long checkIntervalMs = 20;
-
-            ioWorkerPool = Executors.newFixedThreadPool(nIoThreads,
-                new NamedAgnosticThreadFactory<>(
-                    "BufferedRegionFile I/O Worker",
-                    (group, runnable, name) -> {
-                        Thread thread = new Thread(group, runnable, name);
-                        thread.setDaemon(true);
-                        return thread;
-                    },
-                    Thread.NORM_PRIORITY
-                )
-            );
-
-            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
-                new NamedAgnosticThreadFactory<>(
-                    "BufferedRegionFile Flusher Checker",
-                    (group, runnable, name) -> {
-                        Thread thread = new Thread(group, runnable, name);
-                        thread.setDaemon(true);
-                        return thread;
-                    },
-                    Thread.NORM_PRIORITY
-                )
-            );
-
-            flusherChecker = scheduler.scheduleWithFixedDelay(
-                BufferedRegionFile::runFlusherCheck,
-                checkIntervalMs,
-                checkIntervalMs,
-                TimeUnit.MILLISECONDS
-            );
+    private void markDirty() {
+        SYNCED_HANDLE.set(this, false);
+        RegionWriteBackScheduler.markDirty(this);
+    }
 
-            flusherInitialized = true;
+    @Override
+    public long writeBack() throws IOException {
+        this.writeLock.lock();
+        try {
+            final long bytes = this.bytesSinceWriteBack + this.headerSize();
+            this.flush();
+            return bytes;
+        } finally {
+            this.writeLock.unlock();
         }
     }
 
-    private static void runFlusherCheck() {
-        final long currentNanos = System.nanoTime();
-        final BufferedRegionFile[] copied;
-
-        synchronized (MANAGED_FILES) {
-            copied = Arrays.copyOf(
-                    MANAGED_FILES.toArray(new BufferedRegionFile[0]),
-                    MANAGED_FILES.size(),
-                    BufferedRegionFile[].class
-            );
+    @Override
+    public void force() throws IOException {
+        final long[] written;
+        this.writeLock.lock();
+        try {
+            written = this.unforcedFree.toLongArray();
+            this.unforcedFree.clear();
+        } finally {
+            this.writeLock.unlock();
         }
 
-        final List<BufferedRegionFile> toRemove = new ObjectArrayList<>();
-        for (BufferedRegionFile file : copied) {
-            if (!file.softReadLock()) {
-                continue;
-            }
-
-            boolean closed;
+        final FileChannel channel = this.channel;
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
 
+        try {
+            channel.force(true);
+        } catch (IOException | RuntimeException ex) {
+            this.writeLock.lock();
             try {
-                closed = file.isClosedRaw();
+                this.unforcedFree.addElements(0, written);
             } finally {
-                file.releaseReadLock();
-            }
-
-            if (closed) {
-                toRemove.add(file);
-                continue;
-            }
-
-            if (!file.shouldSync()) {
-                continue;
-            }
-
-            final long lastWriteNanos = file.getLastWritten();
-            final long timeElapsed = (currentNanos - lastWriteNanos) / 1_000_000;
-            final long flushTimeoutMs = DivineConfig.MiscCategory.linearIoFlushDelayMs;
-
-            if (timeElapsed >= flushTimeoutMs) {
-                if (!file.markAsBeingSynced()) {
-                    continue;
-                }
-
-                ioWorkerPool.execute(() -> {
-                    try {
-                        file.flush();
-                        file.syncIfNeeded();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                this.writeLock.unlock();
             }
+            throw ex;
         }
 
-        synchronized (MANAGED_FILES) {
-            for (BufferedRegionFile file : toRemove) {
-                MANAGED_FILES.remove(file);
-            }
-        }
-    }
-
-    public static void shutdown() throws InterruptedException {
-        synchronized (FLUSHER_LOCK) {
-            if (!flusherInitialized) {
-                return;
-            }
-
-            if (flusherChecker != null) {
-                flusherChecker.cancel(false);
-            }
-
-            if (ioWorkerPool instanceof ExecutorService) {
-                ((ExecutorService) ioWorkerPool).shutdown();
-                //noinspection StatementWithEmptyBody
-                while (!((ExecutorService) ioWorkerPool).awaitTermination(100, TimeUnit.MILLISECONDS));
+        this.writeLock.lock();
+        try {
+            if (!this.closed) {
+                this.releaseExtents(written);
             }
-
-            flusherInitialized = false;
-        }
-    }
-
-    private void addToFlusherManagement() {
-        synchronized (MANAGED_FILES) {
-            MANAGED_FILES.add(this);
-        }
-    }
-
-    private void removeFromFlusherManagement() {
-        synchronized (MANAGED_FILES) {
-            MANAGED_FILES.remove(this);
+        } finally {
+            this.writeLock.unlock();
         }
     }
 
-    public boolean softReadLock() {
-        return this.fileAccessLock.readLock().tryLock();
-    }
-
-    public void releaseReadLock() {
-        this.fileAccessLock.readLock().unlock();
-    }
-
-    public boolean isClosedRaw() {
-        return this.closed;
-    }
-
-    public boolean shouldSync() {
-        return !(boolean) SYNCED_HANDLE.get(this);
-    }
-
-    public long getLastWritten() {
-        return (long) LAST_WRITTEN_HANDLE.get(this);
-    }
-
-    public boolean markAsBeingSynced() {
-        return BEING_SYNCED_HANDLE.compareAndSet(this, false, true);
-    }
-
-    public void syncIfNeeded() throws IOException {
-        if (this.channel != null && this.channel.isOpen()) {
-            this.channel.force(true);
+    private void readHeaders() throws IOException {
+        final long fileSize = this.channel.size();
+        if (fileSize < headerSize(VERSION_NO_DICTIONARY)) {
+            return;
         }
-    }
 
-    private void readHeaders() throws IOException {
-        if (this.channel.size() < this.headerSize()) {
+        final byte version = readVersion(this.channel, this.filePath);
+        if (fileSize < headerSize(version)) {
             return;
         }
 
+        this.formatVersion = version;
+
         final ByteBuffer buffer = ByteBuffer.allocateDirect(this.headerSize());
-        this.channel.read(buffer, 0);
+        readFully(this.channel, buffer, 0);
         buffer.flip();
-
-        if (buffer.getLong() != SUPER_BLOCK || buffer.get() != VERSION) {
-            throw new IOException("Invalid file format or version mismatch");
-        }
+        buffer.position(Long.BYTES + Byte.BYTES); // Magic and version
 
         this.compressionLevel = buffer.get(); // Compression level
         this.xxHash32Seed = buffer.getInt(); // XXHash32 seed
+        if (version >= VERSION) {
+            this.dictionaryId = buffer.getInt(); // Dictionary id
+        }
         this.currentAcquiredIndex = buffer.getLong(); // Acquired index
 
         for (Sector sector : this.sectors) {
@@ -287,19 +211,54 @@ public class BufferedRegionFile implements IRegionFile {
                 this.currentAcquiredIndex = Math.max(this.currentAcquiredIndex, sector.offset + sector.length);
             }
         }
+
+        this.rebuildFreeSpace();
+
+        // only the chunks compressed with it fail to load, everything else in the file stays readable and writable
+        if (this.dictionaryId != 0 && this.dictionaryStore.byId(this.dictionaryId) == null) {
+            LOGGER.error("Region file {} was last written with zstd dictionary {} which is missing from {}, chunks compressed with it cannot be loaded",
+                this.filePath, Integer.toUnsignedString(this.dictionaryId), ZstdDictionaryStore.DIRECTORY_NAME);
+        }
+    }
+
+    private static byte readVersion(@NotNull FileChannel channel, @NotNull Path filePath) throws IOException {
+        final ByteBuffer prefix = ByteBuffer.allocate(Long.BYTES + Byte.BYTES);
+        readFully(channel, prefix, 0);
+        prefix.flip();
+
+        final long magic = prefix.getLong();
+        final byte version = prefix.get();
+        if (magic != SUPER_BLOCK || (version != VERSION && version != VERSION_NO_DICTIONARY)) {
+            throw new IOException("Invalid file format or version mismatch: " + filePath);
+        }
+
+        return version;
+    }
+
+    private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
     }
 
     private void writeHeaders() throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocateDirect(this.headerSize());
+        final ByteBuffer buffer = IO_BUFFERS.get().header(this.headerSize());
 
         buffer.putLong(SUPER_BLOCK); // Magic
-        buffer.put(VERSION); // Version
+        buffer.put(this.formatVersion); // Version
         buffer.put(this.compressionLevel); // Compression level
         buffer.putInt(this.xxHash32Seed); // XXHash32 seed
+        if (this.formatVersion >= VERSION) {
+            buffer.putInt(this.dictionaryId); // Dictionary id
+        }
         buffer.putLong(this.currentAcquiredIndex); // Acquired index
 
         for (Sector sector : this.sectors) {
-            buffer.put(sector.getEncoded());
+            sector.encodeInto(buffer);
         }
 
         buffer.flip();
@@ -310,142 +269,324 @@ public class BufferedRegionFile implements IRegionFile {
         }
     }
 
-    private int sectorSize() {
-        return this.sectors.length * Sector.sizeOfSingle();
+    private static int sectorSize() {
+        return 1024 * Sector.sizeOfSingle();
     }
 
     private int headerSize() {
+        return headerSize(this.formatVersion);
+    }
+
+    private static int headerSize(byte version) {
         int result = 0;
 
         result += Long.BYTES; // Magic
         result += Byte.BYTES; // Version
         result += Byte.BYTES; // Compression level
         result += Integer.BYTES; // XXHash32 seed
+        if (version >= VERSION) {
+            result += Integer.BYTES; // Dictionary id
+        }
         result += Long.BYTES; // Acquired index
-        result += this.sectorSize(); // Sectors
+        result += sectorSize(); // Sectors
 
         return result;
     }
 
-    private void flushInternal() throws IOException {
-        if (this.closed) {
-            return;
-        }
+    /**
+     * Upgrades a version 1 file in place. The version 2 header is slightly larger, so any sector
+     * overlapping it is appended to the end of the file first.
+     */
+    private void upgradeFormat() throws IOException {
+        final int newHeaderSize = headerSize(VERSION);
+        this.freeSpace.reserveBelow(newHeaderSize);
+        this.currentAcquiredIndex = Math.max(this.currentAcquiredIndex, newHeaderSize);
 
-        this.writeHeaders();
+        for (Sector sector : this.sectors) {
+            if (!sector.hasData() || sector.offset >= newHeaderSize) {
+                continue;
+            }
 
-        long spareSize = this.channel.size();
+            final ByteBuffer data = ByteBuffer.allocateDirect((int) sector.length);
+            readFully(this.channel, data, sector.offset);
+            data.flip();
 
-        spareSize -= this.headerSize();
-        for (Sector sector : this.sectors) {
-            spareSize -= sector.length;
+            sector.store(data, this.channel);
         }
 
-        long sectorSize = 0;
-        for (Sector sector : this.sectors) {
-            sectorSize += sector.length;
+        this.formatVersion = VERSION;
+        this.writeHeaders();
+    }
+
+    /**
+     * @return whether the compactor still has work left for another pass
+     */
+    private boolean flushInternal() throws IOException {
+        if (this.closed) {
+            return false;
         }
 
-        if (spareSize > AUTO_COMPACT_SIZE && (double)spareSize > ((double)sectorSize) * AUTO_COMPACT_PERCENT) {
-            this.compact();
+        this.writeHeaders();
+        // the header just written no longer refers to these, but the one on disk may until it is forced
+        this.unforcedFree.addAll(this.pendingFree);
+        this.pendingFree.clear();
+        this.bytesSinceWriteBack = 0L;
+
+        if (!this.shouldCompact()) {
+            return false;
         }
+
+        return this.compactIncrementally(DivineConfig.MiscCategory.bufferedCompactionBudgetKb * 1024L);
     }
 
     private void closeInternal() throws IOException {
         this.closed = true;
         this.writeHeaders();
         this.channel.force(true);
-        this.compact();
-        this.channel.close();
+        this.releasePendingExtents();
+        this.writeHeaders();
+
+        final long stamp = this.structureLock.writeLock();
+        try {
+            this.mappedData = null;
+            if (this.channel.size() > this.currentAcquiredIndex) {
+                this.channel.truncate(this.currentAcquiredIndex);
+            }
+            this.channel.force(true);
+            this.channel.close();
+        } finally {
+            this.structureLock.unlockWrite(stamp);
+        }
     }
 
-    private void compact() throws IOException {
-        this.writeHeaders();
-        this.channel.force(true);
-        try (FileChannel tempChannel = FileChannel.open(
-            new File(this.filePath.toString() + ".tmp").toPath(),
-            StandardOpenOption.CREATE,
-            StandardOpenOption.WRITE,
-            StandardOpenOption.READ
-        )){
-            final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(this.headerSize());
-            this.channel.read(headerBuffer, 0);
-            headerBuffer.flip();
+    private void rebuildFreeSpace() {
+        final Sector[] live = Arrays.stream(this.sectors)
+            .filter(Sector::hasData)
+            .sorted(Comparator.comparingLong(sector -> sector.offset))
+            .toArray(Sector[]::new);
 
-            long offsetHeader = 0;
-            while (headerBuffer.hasRemaining()) {
-                offsetHeader += tempChannel.write(headerBuffer, offsetHeader);
+        this.freeSpace.clear();
+
+        long cursor = this.headerSize();
+        for (Sector sector : live) {
+            if (sector.offset > cursor) {
+                this.freeSpace.release(cursor, sector.offset - cursor);
             }
+            cursor = Math.max(cursor, sector.offset + sector.length);
+        }
 
-            long offsetPointer = this.headerSize();
-            tempChannel.position(offsetPointer);
+        // anything past the last live chunk is simply appended over again
+        this.currentAcquiredIndex = cursor;
+    }
 
-            for (Sector sector : this.sectors) {
-                if (!sector.hasData()) {
-                    continue;
-                }
+    private long allocate(long length) {
+        final long offset = this.freeSpace.allocate(length, Long.MAX_VALUE);
+        if (offset >= 0) {
+            return offset;
+        }
 
-                long transferred = 0;
-                while (transferred < sector.length) {
-                    transferred += this.channel.transferTo(
-                        sector.offset + transferred,
-                        sector.length - transferred,
-                        tempChannel);
-                }
+        final long appended = this.currentAcquiredIndex;
+        this.currentAcquiredIndex += length;
+        return appended;
+    }
 
-                final Sector newRecalculated = new Sector(sector.index, offsetPointer, sector.length);
-                newRecalculated.hasData = true;
+    private void releaseLater(long offset, long length) {
+        if (length > 0) {
+            this.pendingFree.add(offset);
+            this.pendingFree.add(length);
+        }
+    }
+
+    /**
+     * Makes extents reusable that the header written and forced just before no longer references.
+     */
+    private void releasePendingExtents() {
+        this.releaseExtents(this.unforcedFree.toLongArray());
+        this.unforcedFree.clear();
+        this.releaseExtents(this.pendingFree.toLongArray());
+        this.pendingFree.clear();
+    }
 
-                offsetPointer += sector.length;
-                this.sectors[sector.index] = newRecalculated;
+    /**
+     * Makes extents reusable once no header on disk refers to them anymore.
+     *
+     * @param extents offset, length pairs
+     */
+    private void releaseExtents(long @NotNull [] extents) {
+        final long headerSize = this.headerSize();
+
+        for (int i = 0; i < extents.length; i += 2) {
+            long offset = extents[i];
+            long length = extents[i + 1];
+
+            // extents of version 1 files may overlap the now larger header
+            if (offset < headerSize) {
+                length -= headerSize - offset;
+                offset = headerSize;
             }
 
-            tempChannel.force(true);
-            this.currentAcquiredIndex = offsetPointer;
+            if (length > 0) {
+                this.freeSpace.release(offset, length);
+            }
         }
 
-        this.channel.close();
+        this.currentAcquiredIndex = this.freeSpace.trimTail(this.currentAcquiredIndex);
+    }
 
-        Files.move(
-            new File(this.filePath.toString() + ".tmp").toPath(),
-            this.filePath,
-            java.nio.file.StandardCopyOption.REPLACE_EXISTING
-        );
+    private boolean shouldCompact() {
+        final long freeBytes = this.freeSpace.freeBytes();
+        if (freeBytes < COMPACT_THRESHOLD_SIZE || DivineConfig.MiscCategory.bufferedCompactionBudgetKb <= 0) {
+            return false;
+        }
 
-        this.reopenChannel();
-        this.writeHeaders();
+        long liveBytes = 0;
+        for (Sector sector : this.sectors) {
+            if (sector.hasData()) {
+                liveBytes += sector.length;
+            }
+        }
+
+        return (double) freeBytes > (double) liveBytes * COMPACT_THRESHOLD_PERCENT;
     }
 
-    private void reopenChannel() throws IOException {
-        if (this.channel.isOpen()) {
-            this.channel.close();
+    /**
+     * Moves chunks from the end of the file into holes closer to the header until the byte budget
+     * is used up. The old locations are released once a header no longer referring to them has been
+     * written and forced, after which the tail of the file shrinks.
+     *
+     * @return whether any chunk was moved
+     */
+    private boolean compactIncrementally(long budgetBytes) throws IOException {
+        final IoBuffers buffers = IO_BUFFERS.get();
+        long moved = 0;
+
+        try {
+            while (moved < budgetBytes) {
+                Sector last = null;
+                for (Sector sector : this.sectors) {
+                    if (sector.hasData() && (last == null || sector.offset > last.offset)) {
+                        last = sector;
+                    }
+                }
+
+                if (last == null) {
+                    break;
+                }
+
+                final long target = this.freeSpace.allocate(last.length, last.offset);
+                if (target < 0) {
+                    break;
+                }
+
+                final ByteBuffer data = buffers.section((int) last.length);
+                readFully(this.channel, data, last.offset);
+                data.flip();
+
+                long position = target;
+                while (data.hasRemaining()) {
+                    position += this.channel.write(data, position);
+                }
+
+                final long oldOffset = last.offset;
+                last.relocate(target);
+                this.releaseLater(oldOffset, last.length);
+
+                moved += last.length;
+                this.bytesSinceWriteBack += last.length;
+            }
+        } finally {
+            buffers.trim();
         }
 
-        this.channel = FileChannel.open(
-            filePath,
-            StandardOpenOption.CREATE,
-            StandardOpenOption.WRITE,
-            StandardOpenOption.READ
-        );
+        return moved > 0;
     }
 
     private void writeChunkDataRaw(int chunkOrdinal, ByteBuffer chunkData) throws IOException {
         final Sector sector = this.sectors[chunkOrdinal];
 
+        this.bytesSinceWriteBack += chunkData.remaining();
         sector.store(chunkData, this.channel);
 
-        SYNCED_HANDLE.set(this, false);
-        LAST_WRITTEN_HANDLE.set(this, System.nanoTime());
+        this.markDirty();
     }
 
     private @Nullable ByteBuffer readChunkDataRaw(int chunkOrdinal) throws IOException {
         final Sector sector = this.sectors[chunkOrdinal];
 
-        if (!sector.hasData()) {
+        final IoBuffers buffers = IO_BUFFERS.get();
+
+        long stamp = this.structureLock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                final ByteBuffer result = sector.read(buffers);
+                if (this.structureLock.validate(stamp)) {
+                    return result;
+                }
+            } catch (IOException | RuntimeException ex) {
+                // a concurrent compaction swapped the channel or mapping out from under us
+                if (this.structureLock.validate(stamp)) {
+                    throw ex;
+                }
+            }
+        }
+
+        stamp = this.structureLock.readLock();
+        try {
+            return sector.read(buffers);
+        } finally {
+            this.structureLock.unlockRead(stamp);
+        }
+    }
+
+    private @NotNull ByteBuffer readRange(long offset, int length, @NotNull IoBuffers buffers) throws IOException {
+        final ByteBuffer result = buffers.section(length);
+        final MappedByteBuffer mapped = this.mappedFor(offset + length);
+
+        if (mapped != null) {
+            result.put(0, mapped, (int) offset, length);
+            return result;
+        }
+
+        final FileChannel channel = this.channel;
+        long position = offset;
+        while (result.hasRemaining()) {
+            final int read = channel.read(result, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of region file " + this.filePath + " at " + position);
+            }
+            position += read;
+        }
+        result.flip();
+
+        return result;
+    }
+
+    private @Nullable MappedByteBuffer mappedFor(long end) throws IOException {
+        if (!this.mmapReads || end > Integer.MAX_VALUE) {
             return null;
         }
 
-        return sector.read(this.channel);
+        MappedByteBuffer mapped = this.mappedData;
+        if (mapped != null && mapped.capacity() >= end) {
+            return mapped;
+        }
+
+        synchronized (this.mappingLock) {
+            mapped = this.mappedData;
+            if (mapped != null && mapped.capacity() >= end) {
+                return mapped;
+            }
+
+            final FileChannel channel = this.channel;
+            final long size = channel.size();
+            if (size < end || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.mappedData = mapped;
+            return mapped;
+        }
     }
 
     private void clearChunkData(int chunkOrdinal) throws IOException {
@@ -455,8 +596,7 @@ public class BufferedRegionFile implements IRegionFile {
 
         this.writeHeaders();
 
-        SYNCED_HANDLE.set(this, false);
-        LAST_WRITTEN_HANDLE.set(this, System.nanoTime());
+        this.markDirty();
     }
 
     private static int getChunkIndex(int x, int z) {
@@ -469,24 +609,68 @@ public class BufferedRegionFile implements IRegionFile {
 
     private void writeChunk(int x, int z, @NotNull ByteBuffer data) throws IOException {
         final int chunkIndex = getChunkIndex(x, z);
+        final IoBuffers buffers = IO_BUFFERS.get();
+
+        try {
+            final ZstdDictionaryStore.Dictionary dictionary = this.formatVersion >= VERSION && DivineConfig.MiscCategory.bufferedRegionUseDictionary
+                ? this.dictionaryStore.active()
+                : null;
+            final ByteBuffer section = this.buildChunkSection(data, dictionary, buffers);
+
+            this.writeLock.lock();
+            try {
+                if (this.closed) {
+                    throw new IOException("Region file " + this.filePath + " is already closed");
+                }
+
+                if (this.formatVersion < VERSION) {
+                    this.upgradeFormat();
+                }
+
+                this.writeChunkDataRaw(chunkIndex, section);
+
+                this.dictionaryId = dictionary != null ? dictionary.id() : 0;
+            } finally {
+                this.writeLock.unlock();
+            }
+        } finally {
+            buffers.trim();
+        }
+    }
+
+    private @NotNull ByteBuffer buildChunkSection(@NotNull ByteBuffer data, ZstdDictionaryStore.@Nullable Dictionary dictionary,
+                                                  @NotNull IoBuffers buffers) throws IOException {
+        final int uncompressedLength = data.remaining();
 
         final int oldPositionOfData = data.position();
         final int xxHash32OfData = this.xxHash32.hash(data, this.xxHash32Seed);
         data.position(oldPositionOfData);
 
-        final ByteBuffer compressedData = this.compress(this.ensureDirectBuffer(data));
-        final ByteBuffer chunkSectionBuilder = ByteBuffer.allocateDirect(compressedData.remaining() + 4 + 8 + 4);
+        // zstd-jni only takes direct buffers on the zero-copy path, stage heap data once into the pooled buffer
+        final ByteBuffer source;
+        final int sourceOffset;
+        if (data.isDirect()) {
+            source = data;
+            sourceOffset = data.position();
+        } else {
+            source = buffers.raw(uncompressedLength);
+            source.put(0, data, data.position(), uncompressedLength);
+            sourceOffset = 0;
+        }
+
+        final int bound = (int) Zstd.compressBound(uncompressedLength);
+        final ByteBuffer section = buffers.section(CHUNK_HEADER_SIZE + bound);
+        final int compressedLength = this.compress(buffers, dictionary, section, CHUNK_HEADER_SIZE, bound, source, sourceOffset, uncompressedLength);
 
-        chunkSectionBuilder.putInt(data.remaining()); // Uncompressed length
-        chunkSectionBuilder.putLong(System.currentTimeMillis()); // Timestamp
-        chunkSectionBuilder.putInt(xxHash32OfData); // xxHash32 of the original data
-        chunkSectionBuilder.put(compressedData); // Compressed data
-        chunkSectionBuilder.flip();
+        section.putInt(0, uncompressedLength); // Uncompressed length
+        section.putLong(Integer.BYTES, System.currentTimeMillis()); // Timestamp
+        section.putInt(Integer.BYTES + Long.BYTES, xxHash32OfData); // xxHash32 of the original data
+        section.limit(CHUNK_HEADER_SIZE + compressedLength); // Compressed data
 
-        this.writeChunkDataRaw(chunkIndex, chunkSectionBuilder);
+        return section;
     }
 
-    private @Nullable ByteBuffer readChunk(int x, int z) throws IOException {
+    private @Nullable ByteBuffer readChunk(int x, int z, @NotNull IoBuffers buffers) throws IOException {
         final ByteBuffer compressed = this.readChunkDataRaw(getChunkIndex(x, z));
 
         if (compressed == null) {
@@ -497,7 +681,7 @@ public class BufferedRegionFile implements IRegionFile {
         final long timestamp = compressed.getLong(); // TODO use this timestamp for something?
         final int dataXXHash32 = compressed.getInt();
 
-        final ByteBuffer decompressed = this.decompress(this.ensureDirectBuffer(compressed), uncompressedLength);
+        final ByteBuffer decompressed = decompress(buffers, this.dictionaryStore, compressed, uncompressedLength, this.filePath);
 
         final IOException xxHash32CheckFailedEx = this.checkXXHash32(dataXXHash32, decompressed);
         if (xxHash32CheckFailedEx != null) {
@@ -507,98 +691,61 @@ public class BufferedRegionFile implements IRegionFile {
         return decompressed;
     }
 
-    private @NotNull ByteBuffer ensureDirectBuffer(@NotNull ByteBuffer buffer) {
-        if (buffer.isDirect()) {
-            return buffer;
-        }
-
-        ByteBuffer direct = ByteBuffer.allocateDirect(buffer.remaining());
-        int originalPosition = buffer.position();
-        direct.put(buffer);
-        direct.flip();
-        buffer.position(originalPosition);
-
-        return direct;
-    }
-
-    private @NotNull ByteBuffer compress(@NotNull ByteBuffer input) throws IOException {
-        final int originalPosition = input.position();
-        final int originalLimit = input.limit();
-
+    private int compress(@NotNull IoBuffers buffers, ZstdDictionaryStore.@Nullable Dictionary dictionary, @NotNull ByteBuffer dst, int dstOffset, int dstSize,
+                         @NotNull ByteBuffer src, int srcOffset, int srcSize) throws IOException {
         try {
-            byte[] inputArray;
-            int inputLength = input.remaining();
-            if (input.hasArray()) {
-                inputArray = input.array();
-                int arrayOffset = input.arrayOffset() + input.position();
-                if (arrayOffset != 0 || inputLength != inputArray.length) {
-                    byte[] temp = new byte[inputLength];
-                    System.arraycopy(inputArray, arrayOffset, temp, 0, inputLength);
-                    inputArray = temp;
-                }
+            final ZstdCompressCtx ctx;
+            if (dictionary != null) {
+                // the compression level is baked into the digested dictionary
+                ctx = buffers.dictCompressCtx;
+                ctx.loadDict(dictionary.compress(this.compressionLevel));
             } else {
-                inputArray = new byte[inputLength];
-                input.get(inputArray);
-                input.position(originalPosition);
+                ctx = buffers.compressCtx;
+                ctx.setLevel(this.compressionLevel);
             }
 
-            byte[] compressed = com.github.luben.zstd.Zstd.compress(inputArray, this.compressionLevel);
-
-            ByteBuffer result = ByteBuffer.allocateDirect(compressed.length);
-            result.put(compressed);
-            result.flip();
-
-            return result;
-
+            return ctx.compressDirectByteBuffer(dst, dstOffset, dstSize, src, srcOffset, srcSize);
         } catch (Exception e) {
-            throw new IOException("Compression failed for input size: " + input.remaining(), e);
-        } finally {
-            input.position(originalPosition);
-            input.limit(originalLimit);
+            throw new IOException("Compression failed for input size: " + srcSize, e);
         }
     }
 
-    private @NotNull ByteBuffer decompress(@NotNull ByteBuffer input, int originalSize) throws IOException {
-        final int originalPosition = input.position();
-        final int originalLimit = input.limit();
-
-        try {
-            byte[] inputArray;
-            int inputLength = input.remaining();
-
-            if (input.hasArray()) {
-                inputArray = input.array();
-                int arrayOffset = input.arrayOffset() + input.position();
-                if (arrayOffset != 0 || inputLength != inputArray.length) {
-                    byte[] temp = new byte[inputLength];
-                    System.arraycopy(inputArray, arrayOffset, temp, 0, inputLength);
-                    inputArray = temp;
-                }
-            } else {
-                inputArray = new byte[inputLength];
-                input.get(inputArray);
-                input.position(originalPosition);
-            }
-
-            byte[] decompressed = com.github.luben.zstd.Zstd.decompress(inputArray, originalSize);
-
-            if (decompressed.length != originalSize) {
-                throw new IOException("Decompression size mismatch: expected " +
-                    originalSize + ", got " + decompressed.length);
+    private static @NotNull ByteBuffer decompress(@NotNull IoBuffers buffers, @NotNull ZstdDictionaryStore dictionaryStore,
+                                                  @NotNull ByteBuffer input, int originalSize, @NotNull Path filePath) throws IOException {
+        final ByteBuffer result = buffers.raw(originalSize);
+        final int dictionaryId = ZstdDictionaryStore.frameDictionaryId(input, input.position());
+        final ZstdDecompressCtx ctx;
+
+        if (dictionaryId != 0) {
+            final ZstdDictionaryStore.Dictionary dictionary = dictionaryStore.byId(dictionaryId);
+            if (dictionary == null) {
+                throw new IOException("Chunk in " + filePath + " was compressed with zstd dictionary " + Integer.toUnsignedString(dictionaryId)
+                    + " which is missing from " + ZstdDictionaryStore.DIRECTORY_NAME);
             }
 
-            ByteBuffer result = ByteBuffer.allocateDirect(originalSize);
-            result.put(decompressed);
-            result.flip();
+            ctx = buffers.dictDecompressCtx;
+            ctx.loadDict(dictionary.decompress());
+        } else {
+            ctx = buffers.decompressCtx;
+        }
 
-            return result;
+        final int decompressedSize;
 
+        try {
+            decompressedSize = ctx.decompressDirectByteBuffer(
+                result, 0, originalSize,
+                input, input.position(), input.remaining()
+            );
         } catch (Exception e) {
             throw new IOException("Decompression failed", e);
-        } finally {
-            input.position(originalPosition);
-            input.limit(originalLimit);
         }
+
+        if (decompressedSize != originalSize) {
+            throw new IOException("Decompression size mismatch: expected " +
+                originalSize + ", got " + decompressedSize);
+        }
+
+        return result;
     }
 
     private @Nullable IOException checkXXHash32(long originalXXHash32, @NotNull ByteBuffer input) {
@@ -613,6 +760,76 @@ public class BufferedRegionFile implements IRegionFile {
         return null;
     }
 
+    /**
+     * Decodes every chunk of a region file through a separate read-only channel, without registering
+     * the file for IO. Used to collect dictionary training samples while the world is running, so
+     * chunks that fail to decode (e.g. torn by a concurrent write) are skipped rather than reported.
+     *
+     * @param consumer receives the uncompressed chunk data, returns {@code false} to stop early
+     * @return {@code false} if the consumer stopped early
+     */
+    public static boolean readAllChunks(@NotNull Path filePath, @NotNull java.util.function.Predicate<ByteBuffer> consumer) throws IOException {
+        final ZstdDictionaryStore dictionaryStore = ZstdDictionaryStore.forFolder(filePath.toAbsolutePath().getParent());
+        final XXHash32 xxHash32 = XXHashFactory.fastestInstance().hash32();
+        final IoBuffers buffers = IO_BUFFERS.get();
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            if (channel.size() < headerSize(VERSION_NO_DICTIONARY)) {
+                return true;
+            }
+
+            final byte version = readVersion(channel, filePath);
+            if (channel.size() < headerSize(version)) {
+                return true;
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(headerSize(version));
+            readFully(channel, header, 0);
+            header.flip();
+            header.position(Long.BYTES + Byte.BYTES + Byte.BYTES); // Magic, version and compression level
+
+            final int seed = header.getInt();
+            if (version >= VERSION) {
+                header.getInt(); // Dictionary id
+            }
+            header.getLong(); // Acquired index
+
+            for (int i = 0; i < 1024; i++) {
+                final long offset = header.getLong();
+                final long length = header.getLong();
+                final boolean hasData = header.get() == 1;
+
+                if (!hasData || length < CHUNK_HEADER_SIZE || offset + length > channel.size()) {
+                    continue;
+                }
+
+                try {
+                    final ByteBuffer compressed = buffers.section((int) length);
+                    readFully(channel, compressed, offset);
+                    compressed.flip();
+
+                    final int uncompressedLength = compressed.getInt();
+                    compressed.getLong(); // Timestamp
+                    final int dataXXHash32 = compressed.getInt();
+
+                    final ByteBuffer decompressed = decompress(buffers, dictionaryStore, compressed, uncompressedLength, filePath);
+                    if (xxHash32.hash(decompressed.duplicate(), seed) != dataXXHash32) {
+                        continue;
+                    }
+
+                    if (!consumer.test(decompressed)) {
+                        return false;
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            buffers.trim();
+        }
+
+        return true;
+    }
+
     @Override
     public Path getPath() {
         return this.filePath;
@@ -620,9 +837,10 @@ public class BufferedRegionFile implements IRegionFile {
 
     @Override
     public DataInputStream getChunkDataInputStream(@NotNull ChunkPos pos) throws IOException {
-        this.fileAccessLock.readLock().lock();
+        final IoBuffers buffers = IO_BUFFERS.get();
+
         try {
-            final ByteBuffer data = this.readChunk(pos.x, pos.z);
+            final ByteBuffer data = this.readChunk(pos.x, pos.z, buffers);
 
             if (data == null) {
                 return null;
@@ -633,18 +851,13 @@ public class BufferedRegionFile implements IRegionFile {
 
             return new DataInputStream(new ByteArrayInputStream(dataBytes));
         } finally {
-            this.fileAccessLock.readLock().unlock();
+            buffers.trim();
         }
     }
 
     @Override
     public boolean doesChunkExist(@NotNull ChunkPos pos) {
-        this.fileAccessLock.readLock().lock();
-        try {
-            return this.hasData(getChunkIndex(pos.x, pos.z));
-        } finally {
-            this.fileAccessLock.readLock().unlock();
-        }
+        return this.hasData(getChunkIndex(pos.x, pos.z));
     }
 
     @Override
@@ -654,32 +867,22 @@ public class BufferedRegionFile implements IRegionFile {
 
     @Override
     public void clear(@NotNull ChunkPos pos) throws IOException {
-        this.fileAccessLock.writeLock().lock();
+        this.writeLock.lock();
         try {
             this.clearChunkData(getChunkIndex(pos.x, pos.z));
         } finally {
-            this.fileAccessLock.writeLock().unlock();
+            this.writeLock.unlock();
         }
     }
 
     @Override
     public boolean hasChunk(@NotNull ChunkPos pos) {
-        this.fileAccessLock.readLock().lock();
-        try {
-            return this.hasData(getChunkIndex(pos.x, pos.z));
-        }finally {
-            this.fileAccessLock.readLock().unlock();
-        }
+        return this.hasData(getChunkIndex(pos.x, pos.z));
     }
 
     @Override
     public void write(@NotNull ChunkPos pos, ByteBuffer buf) throws IOException {
-        this.fileAccessLock.writeLock().lock();
-        try {
-            this.writeChunk(pos.x, pos.z, buf);
-        }finally {
-            this.fileAccessLock.writeLock().unlock();
-        }
+        this.writeChunk(pos.x, pos.z, buf);
     }
 
     @Override
@@ -720,43 +923,40 @@ public class BufferedRegionFile implements IRegionFile {
 
     @Override
     public void flush() throws IOException {
-        this.fileAccessLock.writeLock().lock();
+        this.writeLock.lock();
         try {
             if ((boolean) SYNCED_HANDLE.get(this)) {
                 return;
             }
 
-            if (!BEING_SYNCED_HANDLE.compareAndSet(this, false, true)) {
-                return;
-            }
-
-            try {
-                this.flushInternal();
-                SYNCED_HANDLE.set(this, true);
-            } finally {
-                BEING_SYNCED_HANDLE.set(this, false);
+            SYNCED_HANDLE.set(this, true);
+            if (this.flushInternal()) {
+                // let the next write-back window continue compacting
+                this.markDirty();
             }
         } finally {
-            this.fileAccessLock.writeLock().unlock();
+            this.writeLock.unlock();
         }
     }
 
     @Override
     public void close() throws IOException {
-        this.fileAccessLock.writeLock().lock();
+        this.writeLock.lock();
         try {
-            removeFromFlusherManagement();
+            RegionWriteBackScheduler.remove(this);
             this.closeInternal();
         } finally {
-            this.fileAccessLock.writeLock().unlock();
+            this.writeLock.unlock();
         }
     }
 
     private class Sector {
         private final int index;
-        private long offset;
-        private long length;
-        private boolean hasData = false;
+        // sequence counter, odd while the sector is being updated
+        private volatile long version = 0L;
+        private volatile long offset;
+        private volatile long length;
+        private volatile boolean hasData = false;
 
         private Sector(int index, long offset, long length) {
             this.index = index;
@@ -764,37 +964,78 @@ public class BufferedRegionFile implements IRegionFile {
             this.length = length;
         }
 
-        public @NotNull ByteBuffer read(@NotNull FileChannel channel) throws IOException {
-            final ByteBuffer result = ByteBuffer.allocateDirect((int) this.length);
+        public @Nullable ByteBuffer read(@NotNull IoBuffers buffers) throws IOException {
+            while (true) {
+                final long before = this.version;
+                if ((before & 1L) != 0L) {
+                    Thread.onSpinWait();
+                    continue;
+                }
 
-            channel.read(result, this.offset);
-            result.flip();
+                final boolean hasData = this.hasData;
+                final long offset = this.offset;
+                final long length = this.length;
+                ByteBuffer result;
+
+                try {
+                    result = hasData ? BufferedRegionFile.this.readRange(offset, (int) length, buffers) : null;
+                } catch (IOException | RuntimeException ex) {
+                    // torn read of offset/length while a writer republished this sector
+                    if (this.version == before) {
+                        throw ex;
+                    }
+                    continue;
+                }
 
-            return result;
+                VarHandle.loadLoadFence();
+                if (this.version == before) {
+                    return result;
+                }
+            }
         }
 
         public void store(@NotNull ByteBuffer newData, @NotNull FileChannel channel) throws IOException {
-            this.hasData = true;
-            this.length = newData.remaining();
-            this.offset = currentAcquiredIndex;
-
-            BufferedRegionFile.this.currentAcquiredIndex += this.length;
+            final long length = newData.remaining();
+            final long offset = BufferedRegionFile.this.allocate(length);
+            final boolean hadData = this.hasData;
+            final long oldOffset = this.offset;
+            final long oldLength = this.length;
 
-            long offset = this.offset;
+            long position = offset;
             while (newData.hasRemaining()) {
-                offset += channel.write(newData, offset);
+                position += channel.write(newData, position);
+            }
+
+            // only publish the new location once the data is on disk, readers holding the old one stay valid
+            this.beginUpdate();
+            this.offset = offset;
+            this.length = length;
+            this.hasData = true;
+            this.endUpdate();
+
+            if (hadData) {
+                BufferedRegionFile.this.releaseLater(oldOffset, oldLength);
             }
         }
 
-        private @NotNull ByteBuffer getEncoded() {
-            final ByteBuffer buffer = ByteBuffer.allocateDirect(sizeOfSingle());
+        private void relocate(long newOffset) {
+            this.beginUpdate();
+            this.offset = newOffset;
+            this.endUpdate();
+        }
 
+        private void beginUpdate() {
+            this.version = this.version + 1L;
+        }
+
+        private void endUpdate() {
+            this.version = this.version + 1L;
+        }
+
+        private void encodeInto(@NotNull ByteBuffer buffer) {
             buffer.putLong(this.offset);
             buffer.putLong(this.length);
             buffer.put((byte) (this.hasData ? 1 : 0));
-            buffer.flip();
-
-            return buffer;
         }
 
         public void restoreFrom(@NotNull ByteBuffer buffer) {
@@ -808,7 +1049,15 @@ public class BufferedRegionFile implements IRegionFile {
         }
 
         public void clear() {
+            final boolean hadData = this.hasData;
+
+            this.beginUpdate();
             this.hasData = false;
+            this.endUpdate();
+
+            if (hadData) {
+                BufferedRegionFile.this.releaseLater(this.offset, this.length);
+            }
         }
 
         public boolean hasData() {
@@ -829,14 +1078,185 @@ public class BufferedRegionFile implements IRegionFile {
 
         @Override
         public void close() throws IOException {
-            BufferedRegionFile.this.fileAccessLock.writeLock().lock();
-            try {
-                ByteBuffer bytebuffer = ByteBuffer.wrap(this.buf, 0, this.count);
+            ByteBuffer bytebuffer = ByteBuffer.wrap(this.buf, 0, this.count);
 
-                BufferedRegionFile.this.writeChunk(this.pos.x, this.pos.z, bytebuffer);
-            } finally {
-                BufferedRegionFile.this.fileAccessLock.writeLock().unlock();
+            BufferedRegionFile.this.writeChunk(this.pos.x, this.pos.z, bytebuffer);
+        }
+    }
+
+    /**
+     * Unused extents between live chunks, keyed by offset so that neighbouring extents coalesce.
+     */
+    private static final class FreeSpaceMap {
+        private final Long2LongAVLTreeMap extents = new Long2LongAVLTreeMap(); // offset -> length
+        private long freeBytes = 0L;
+
+        private long freeBytes() {
+            return this.freeBytes;
+        }
+
+        private void clear() {
+            this.extents.clear();
+            this.freeBytes = 0L;
+        }
+
+        private void release(long offset, long length) {
+            long start = offset;
+            long end = offset + length;
+
+            final Long2LongSortedMap before = this.extents.headMap(start);
+            if (!before.isEmpty()) {
+                final long previous = before.lastLongKey();
+                final long previousLength = this.extents.get(previous);
+                if (previous + previousLength == start) {
+                    this.extents.remove(previous);
+                    start = previous;
+                }
+            }
+
+            if (this.extents.containsKey(end)) {
+                end += this.extents.remove(end);
+            }
+
+            this.extents.put(start, end - start);
+            this.freeBytes += length;
+        }
+
+        /**
+         * Takes the smallest extent that fits {@code length} bytes and starts before {@code limit}.
+         *
+         * @return the offset of the allocated space, or {@code -1} if nothing fits
+         */
+        private long allocate(long length, long limit) {
+            long bestOffset = -1L;
+            long bestLength = Long.MAX_VALUE;
+
+            for (Long2LongMap.Entry entry : this.extents.long2LongEntrySet()) {
+                final long offset = entry.getLongKey();
+                if (offset >= limit) {
+                    break;
+                }
+
+                final long extentLength = entry.getLongValue();
+                if (extentLength >= length && extentLength < bestLength) {
+                    bestOffset = offset;
+                    bestLength = extentLength;
+
+                    if (extentLength == length) {
+                        break;
+                    }
+                }
+            }
+
+            if (bestOffset < 0) {
+                return -1L;
+            }
+
+            this.extents.remove(bestOffset);
+            if (bestLength > length) {
+                this.extents.put(bestOffset + length, bestLength - length);
+            }
+            this.freeBytes -= length;
+
+            return bestOffset;
+        }
+
+        /**
+         * Removes all free space up to {@code limit}, used when the header grows into it.
+         */
+        private void reserveBelow(long limit) {
+            while (!this.extents.isEmpty()) {
+                final long offset = this.extents.firstLongKey();
+                if (offset >= limit) {
+                    return;
+                }
+
+                final long length = this.extents.remove(offset);
+                this.freeBytes -= length;
+
+                if (offset + length > limit) {
+                    this.extents.put(limit, offset + length - limit);
+                    this.freeBytes += offset + length - limit;
+                }
+            }
+        }
+
+        /**
+         * @return the new end of the used part of the file once a free extent touching it is dropped
+         */
+        private long trimTail(long tail) {
+            if (this.extents.isEmpty()) {
+                return tail;
+            }
+
+            final long last = this.extents.lastLongKey();
+            final long length = this.extents.get(last);
+            if (last + length != tail) {
+                return tail;
             }
+
+            this.extents.remove(last);
+            this.freeBytes -= length;
+            return last;
+        }
+    }
+
+    /**
+     * Per-thread scratch space for chunk IO. Buffers grow on demand and are dropped back to their
+     * initial size after an unusually large chunk so idle IO threads do not pin direct memory.
+     */
+    private static final class IoBuffers {
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+        private static final int RETAINED_CAPACITY = 2 * 1024 * 1024;
+
+        private final ZstdCompressCtx compressCtx = new ZstdCompressCtx();
+        private final ZstdDecompressCtx decompressCtx = new ZstdDecompressCtx();
+        private final ZstdCompressCtx dictCompressCtx = new ZstdCompressCtx();
+        private final ZstdDecompressCtx dictDecompressCtx = new ZstdDecompressCtx();
+        private ByteBuffer raw = ByteBuffer.allocateDirect(INITIAL_CAPACITY); // uncompressed chunk data
+        private ByteBuffer section = ByteBuffer.allocateDirect(INITIAL_CAPACITY); // chunk data as stored on disk
+        private ByteBuffer header;
+
+        private @NotNull ByteBuffer raw(int size) {
+            if (this.raw.capacity() < size) {
+                this.raw = ByteBuffer.allocateDirect(grownCapacity(size));
+            }
+
+            return this.raw.clear().limit(size);
+        }
+
+        private @NotNull ByteBuffer section(int size) {
+            if (this.section.capacity() < size) {
+                this.section = ByteBuffer.allocateDirect(grownCapacity(size));
+            }
+
+            return this.section.clear().limit(size);
+        }
+
+        private @NotNull ByteBuffer header(int size) {
+            if (this.header == null || this.header.capacity() < size) {
+                this.header = ByteBuffer.allocateDirect(size);
+            }
+
+            return this.header.clear().limit(size);
+        }
+
+        private void trim() {
+            if (this.raw.capacity() > RETAINED_CAPACITY) {
+                this.raw = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+            }
+
+            if (this.section.capacity() > RETAINED_CAPACITY) {
+                this.section = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+            }
+        }
+
+        private static int grownCapacity(int size) {
+            if (size > (1 << 30)) {
+                return size;
+            }
+
+            return Math.max(INITIAL_CAPACITY, Integer.highestOneBit(size - 1) << 1);
         }
     }
 }
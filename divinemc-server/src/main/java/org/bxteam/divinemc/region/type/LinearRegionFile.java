@@ -7,14 +7,15 @@ import net.jpountz.lz4.LZ4Compressor;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.storage.RegionFileVersion;
 import net.minecraft.world.level.chunk.storage.RegionStorageInfo;
 import net.openhft.hashing.LongHashFunction;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bxteam.divinemc.config.DivineConfig;
 import org.bxteam.divinemc.region.IRegionFile;
+import org.bxteam.divinemc.region.RegionWriteBackScheduler;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.BufferedOutputStream;
@@ -22,47 +23,73 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.LockSupport;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class LinearRegionFile implements IRegionFile {
+/**
+ * Linear region file format.
+ *
+ * <p>Since version 4 the header stores the offset of every bucket, so opening a region only reads its
+ * header and reading a chunk only decompresses the bucket it lives in. Decompressed buckets are kept in
+ * a byte-bounded LRU shared by all region files. Chunks written since the last write-back are held LZ4
+ * compressed until then, and only the buckets containing them are recompressed; all other buckets are
+ * copied over from the previous file as they are. Version 3 files are read the same way, versions 1
+ * and 2 are loaded once and rewritten.
+ *
+ * <p>Only the chunk existence bitmap of version 5 files is trusted. Older writers left the bits of chunks in
+ * buckets that were never opened unset, so for version 3 and 4 files the chunks of a bucket are looked up in
+ * the decoded bucket the first time one of them is asked for, and all of them before the file is rewritten.
+ */
+public class LinearRegionFile implements IRegionFile, RegionWriteBackScheduler.Target {
     private static final long SUPERBLOCK = 0xc3ff13183cca9d9aL;
-    private static final byte VERSION = 3;
-    private static final int HEADER_SIZE = 27;
+    private static final byte VERSION = 5;
     private static final int FOOTER_SIZE = 8;
+    private static final int BUCKET_INDEX_ENTRY_SIZE = 21; // Offset (Long) + Size (Int) + Compression level (Byte) + Hash (Long)
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
     private static final Logger LOGGER = LogManager.getLogger(LinearRegionFile.class.getSimpleName());
-    private static final Object saveLock = new Object();
+    private static final BucketCache BUCKET_CACHE = new BucketCache();
 
     public static final int MAX_CHUNK_SIZE = 500 * 1024 * 1024;
-    public static int SAVE_THREAD_MAX_COUNT = 6;
-    public static int SAVE_DELAY_MS = 100;
-    public static boolean USE_VIRTUAL_THREAD = true;
-    private static int activeSaveThreads = 0;
 
     public final ReentrantLock fileLock = new ReentrantLock(true);
     public Path regionFile;
     public boolean regionFileOpen = false;
 
-    private final byte[][] buffer = new byte[1024][];
-    private final int[] bufferUncompressedSize = new int[1024];
-    private final long[] chunkTimestamps = new long[1024];
+    // Chunks written or cleared since the last write-back
+    private final boolean[] pending = new boolean[1024];
+    private final byte[][] pendingChunks = new byte[1024][];
+    private final int[] pendingUncompressedSize = new int[1024];
+    private final long[] pendingTimestamps = new long[1024];
+    private final int[] chunkVersions = new int[1024];
+    private final boolean[] chunkExists = new boolean[1024];
     private final Object markedToSaveLock = new Object();
     private final LZ4Compressor compressor;
     private final LZ4FastDecompressor decompressor;
     private final int compressionLevel;
-    private final Thread bindThread;
     private final java.util.concurrent.atomic.AtomicInteger recalculateCount = new java.util.concurrent.atomic.AtomicInteger();
 
-    private byte[][] bucketBuffers;
+    // Bucket index of the file currently on disk
+    private @Nullable FileChannel channel;
+    private long[] bucketOffsets;
+    private int[] bucketSizes;
+    private byte[] bucketCompressionLevels;
+    private long[] bucketHashes;
+    private boolean[] bucketExistenceKnown;
+
+    private @Nullable PendingWrite pendingWrite;
     private boolean markedToSave = false;
     private boolean close = false;
     private int gridSize = 8;
@@ -73,35 +100,6 @@ public class LinearRegionFile implements IRegionFile {
     }
 
     public LinearRegionFile(RegionStorageInfo storageKey, Path path, Path directory, RegionFileVersion compressionFormat, boolean dsync, int compressionLevel) throws IOException {
-        Runnable flushCheck = () -> {
-            while (!close) {
-                synchronized (saveLock) {
-                    if (markedToSave && activeSaveThreads < SAVE_THREAD_MAX_COUNT) {
-                        activeSaveThreads++;
-                        Runnable flushOperation = () -> {
-                            try {
-                                flush();
-                            } catch (IOException ex) {
-                                LOGGER.error("Region file {} flush failed", this.regionFile.toAbsolutePath(), ex);
-                            } finally {
-                                synchronized (saveLock) {
-                                    activeSaveThreads--;
-                                }
-                            }
-                        };
-
-                        Thread saveThread = USE_VIRTUAL_THREAD ?
-                            Thread.ofVirtual().name("Linear IO - " + LinearRegionFile.this.hashCode()).unstarted(flushOperation) :
-                            Thread.ofPlatform().name("Linear IO - " + LinearRegionFile.this.hashCode()).unstarted(flushOperation);
-                        saveThread.setPriority(Thread.NORM_PRIORITY - 3);
-                        saveThread.start();
-                    }
-                }
-                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SAVE_DELAY_MS));
-            }
-        };
-        this.bindThread = USE_VIRTUAL_THREAD ? Thread.ofVirtual().unstarted(flushCheck) : Thread.ofPlatform().unstarted(flushCheck);
-        this.bindThread.setName("Linear IO Schedule - " + this.hashCode());
         this.regionFile = path;
         this.compressionLevel = compressionLevel;
 
@@ -129,90 +127,67 @@ public class LinearRegionFile implements IRegionFile {
         return false;
     }
 
-    private int chunkToBucketIdx(int chunkX, int chunkZ) {
-        int bx = chunkX / bucketSize, bz = chunkZ / bucketSize;
+    private int chunkToBucketIdx(int chunkIndex) {
+        int bx = (chunkIndex & 31) / bucketSize, bz = (chunkIndex >> 5) / bucketSize;
         return bx * gridSize + bz;
     }
 
-    private void openBucket(int chunkX, int chunkZ) {
-        chunkX = Math.floorMod(chunkX, 32);
-        chunkZ = Math.floorMod(chunkZ, 32);
-        int idx = chunkToBucketIdx(chunkX, chunkZ);
+    private int chunkIndexInBucket(int chunkIndex) {
+        int cx = (chunkIndex & 31) % bucketSize, cz = (chunkIndex >> 5) % bucketSize;
+        return cx * bucketSize + cz;
+    }
 
-        if (bucketBuffers == null) return;
-        if (bucketBuffers[idx] != null) {
-            try {
-                ByteArrayInputStream bucketByteStream = new ByteArrayInputStream(bucketBuffers[idx]);
-                ZstdInputStream zstdStream = new ZstdInputStream(bucketByteStream);
-                ByteBuffer bucketBuffer = ByteBuffer.wrap(zstdStream.readAllBytes());
-
-                int bx = chunkX / bucketSize, bz = chunkZ / bucketSize;
-
-                for (int cx = 0; cx < 32 / gridSize; cx++) {
-                    for (int cz = 0; cz < 32 / gridSize; cz++) {
-                        int chunkIndex = (bx * (32 / gridSize) + cx) + (bz * (32 / gridSize) + cz) * 32;
-
-                        int chunkSize = bucketBuffer.getInt();
-                        long timestamp = bucketBuffer.getLong();
-                        this.chunkTimestamps[chunkIndex] = timestamp;
-
-                        if (chunkSize > 0) {
-                            byte[] chunkData = new byte[chunkSize - 8];
-                            bucketBuffer.get(chunkData);
-
-                            int maxCompressedLength = this.compressor.maxCompressedLength(chunkData.length);
-                            byte[] compressed = new byte[maxCompressedLength];
-                            int compressedLength = this.compressor.compress(chunkData, 0, chunkData.length, compressed, 0, maxCompressedLength);
-                            byte[] finalCompressed = new byte[compressedLength];
-                            System.arraycopy(compressed, 0, finalCompressed, 0, compressedLength);
-
-                            if (chunkX == cx && chunkZ == cz) {
-                                this.buffer[chunkIndex] = finalCompressed;
-                                this.bufferUncompressedSize[chunkIndex] = chunkData.length;
-                                return;
-                            }
-                            this.buffer[chunkIndex] = finalCompressed;
-                            this.bufferUncompressedSize[chunkIndex] = chunkData.length;
-                        }
-                    }
-                }
-            } catch (IOException ex) {
-                LOGGER.error("Region file corrupted: {} bucket: {}", regionFile, idx);
-                MinecraftServer.getServer().safeShutdown(true, false);
-            }
-            bucketBuffers[idx] = null;
-        }
+    private void resetBucketIndex() {
+        this.bucketOffsets = new long[gridSize * gridSize];
+        this.bucketSizes = new int[gridSize * gridSize];
+        this.bucketCompressionLevels = new byte[gridSize * gridSize];
+        this.bucketHashes = new long[gridSize * gridSize];
+        this.bucketExistenceKnown = new boolean[gridSize * gridSize];
+        Arrays.fill(this.bucketExistenceKnown, true);
     }
 
     private synchronized void openRegionFile() {
         if (regionFileOpen) return;
         regionFileOpen = true;
 
-        File regionFile = new File(this.regionFile.toString());
+        resetBucketIndex();
 
-        if(!regionFile.canRead()) {
-            this.bindThread.start();
+        if (!Files.isReadable(this.regionFile)) {
             return;
         }
 
         try {
-            byte[] fileContent = Files.readAllBytes(this.regionFile);
-            ByteBuffer buffer = ByteBuffer.wrap(fileContent);
-
-            long superBlock = buffer.getLong();
-            if (superBlock != SUPERBLOCK)
-                throw new RuntimeException("Invalid superblock: " + superBlock + " file " + this.regionFile);
-
-            byte version = buffer.get();
-            if (version == 1 || version == 2) {
-                parseLinearV1(buffer);
-            } else if (version == 3) {
-                parseLinearV2(buffer);
-            } else {
-                throw new RuntimeException("Invalid version: " + version + " file " + this.regionFile);
+            FileChannel channel = FileChannel.open(this.regionFile, StandardOpenOption.READ);
+            try {
+                long fileSize = channel.size();
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(fileSize, MAX_HEADER_SIZE));
+                readFully(channel, buffer, 0);
+                buffer.flip();
+
+                long superBlock = buffer.getLong();
+                if (superBlock != SUPERBLOCK)
+                    throw new RuntimeException("Invalid superblock: " + superBlock + " file " + this.regionFile);
+
+                byte version = buffer.get();
+                if (version == 1 || version == 2) {
+                    channel.close();
+                    ByteBuffer fileContent = ByteBuffer.wrap(Files.readAllBytes(this.regionFile));
+                    fileContent.position(buffer.position());
+                    parseLinearV1(fileContent);
+                    markToSave(); // Rewrite it with a bucket index
+                } else if (version >= 3 && version <= VERSION) {
+                    parseBucketIndex(buffer, version, fileSize);
+                    this.channel = channel;
+                } else {
+                    throw new RuntimeException("Invalid version: " + version + " file " + this.regionFile);
+                }
+            } catch (BufferUnderflowException ex) {
+                channel.close();
+                throw new IOException("Region file header truncated " + this.regionFile, ex);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
             }
-
-            this.bindThread.start();
         } catch (IOException e) {
             throw new RuntimeException("Failed to open region file " + this.regionFile, e);
         }
@@ -252,30 +227,24 @@ public class LinearRegionFile implements IRegionFile {
                 byte[] chunkData = new byte[size];
                 decompressedBuffer.get(chunkData);
 
-                int maxCompressedLength = this.compressor.maxCompressedLength(size);
-                byte[] compressed = new byte[maxCompressedLength];
-                int compressedLength = this.compressor.compress(chunkData, 0, size, compressed, 0, maxCompressedLength);
-                byte[] finalCompressed = new byte[compressedLength];
-                System.arraycopy(compressed, 0, finalCompressed, 0, compressedLength);
-
-                this.buffer[i] = finalCompressed;
-                this.bufferUncompressedSize[i] = size;
-                this.chunkTimestamps[i] = getTimestamp(); // Use current timestamp as we don't have the original
+                this.putPending(i, chunkData, getTimestamp()); // Use current timestamp as we don't have the original
             }
         }
     }
 
-    private void parseLinearV2(ByteBuffer buffer) throws IOException {
+    private void parseBucketIndex(ByteBuffer buffer, byte version, long fileSize) throws IOException {
         buffer.getLong(); // Skip newestTimestamp (Long)
         gridSize = buffer.get();
         if (gridSize != 1 && gridSize != 2 && gridSize != 4 && gridSize != 8 && gridSize != 16 && gridSize != 32)
             throw new RuntimeException("Invalid grid size: " + gridSize + " file " + this.regionFile);
         bucketSize = 32 / gridSize;
+        resetBucketIndex();
 
         buffer.getInt(); // Skip region_x (Int)
         buffer.getInt(); // Skip region_z (Int)
 
         boolean[] chunkExistenceBitmap = deserializeExistenceBitmap(buffer);
+        System.arraycopy(chunkExistenceBitmap, 0, this.chunkExists, 0, 1024);
 
         while (true) {
             byte featureNameLength = buffer.get();
@@ -287,28 +256,102 @@ public class LinearRegionFile implements IRegionFile {
             // System.out.println("NBT Feature: " + featureName + " = " + featureValue);
         }
 
-        int[] bucketSizes = new int[gridSize * gridSize];
-        byte[] bucketCompressionLevels = new byte[gridSize * gridSize];
-        long[] bucketHashes = new long[gridSize * gridSize];
         for (int i = 0; i < gridSize * gridSize; i++) {
+            if (version >= 4) {
+                bucketOffsets[i] = buffer.getLong();
+            }
             bucketSizes[i] = buffer.getInt();
             bucketCompressionLevels[i] = buffer.get();
             bucketHashes[i] = buffer.getLong();
         }
 
-        bucketBuffers = new byte[gridSize * gridSize][];
+        if (version == 3) {
+            // Version 3 stores the buckets back to back right after the header
+            long offset = buffer.position();
+            for (int i = 0; i < gridSize * gridSize; i++) {
+                bucketOffsets[i] = offset;
+                offset += bucketSizes[i];
+            }
+        }
+
         for (int i = 0; i < gridSize * gridSize; i++) {
-            if (bucketSizes[i] > 0) {
-                bucketBuffers[i] = new byte[bucketSizes[i]];
-                buffer.get(bucketBuffers[i]);
-                long rawHash = LongHashFunction.xx().hashBytes(bucketBuffers[i]);
-                if (rawHash != bucketHashes[i]) throw new IOException("Region file hash incorrect " + this.regionFile);
+            if (bucketSizes[i] < 0 || (bucketSizes[i] > 0 && bucketOffsets[i] + bucketSizes[i] > fileSize - FOOTER_SIZE)) {
+                throw new IOException("Region file truncated " + this.regionFile + " bucket: " + i);
+            }
+        }
+
+        if (version < 5) {
+            // The existence bitmap of older writers is incomplete, empty buckets hold no chunks and the others are decoded when needed
+            for (int i = 0; i < 1024; i++) {
+                int bucketIdx = chunkToBucketIdx(i);
+                if (bucketSizes[bucketIdx] == 0) {
+                    this.chunkExists[i] = false;
+                } else {
+                    this.bucketExistenceKnown[bucketIdx] = false;
+                }
+            }
+        }
+    }
+
+    private void resolveExistence(int bucketIdx) throws IOException {
+        if (this.bucketExistenceKnown[bucketIdx]) return;
+
+        DecodedBucket bucket = openBucket(bucketIdx);
+        int bx = bucketIdx / gridSize, bz = bucketIdx % gridSize;
+        for (int cx = 0; cx < bucketSize; cx++) {
+            for (int cz = 0; cz < bucketSize; cz++) {
+                int chunkIndex = (bx * bucketSize + cx) + (bz * bucketSize + cz) * 32;
+                if (!this.pending[chunkIndex]) {
+                    this.chunkExists[chunkIndex] = bucket != null && bucket.lengths[cx * bucketSize + cz] > 0;
+                }
+            }
+        }
+
+        this.bucketExistenceKnown[bucketIdx] = true;
+    }
+
+    private @Nullable DecodedBucket openBucket(int bucketIdx) throws IOException {
+        if (this.channel == null || this.bucketSizes[bucketIdx] == 0) return null;
+
+        DecodedBucket cached = BUCKET_CACHE.get(this, bucketIdx);
+        if (cached != null) return cached;
+
+        ByteBuffer raw = ByteBuffer.allocate(this.bucketSizes[bucketIdx]);
+        readFully(this.channel, raw, this.bucketOffsets[bucketIdx]);
+
+        long rawHash = LongHashFunction.xx().hashBytes(raw.array());
+        if (rawHash != this.bucketHashes[bucketIdx])
+            throw new IOException("Region file hash incorrect " + this.regionFile + " bucket: " + bucketIdx);
+
+        byte[] data;
+        try (ZstdInputStream zstdStream = new ZstdInputStream(new ByteArrayInputStream(raw.array()))) {
+            data = zstdStream.readAllBytes();
+        }
+
+        int chunkCount = bucketSize * bucketSize;
+        int[] offsets = new int[chunkCount];
+        int[] lengths = new int[chunkCount];
+        long[] timestamps = new long[chunkCount];
+
+        ByteBuffer bucketBuffer = ByteBuffer.wrap(data);
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                int chunkSize = bucketBuffer.getInt();
+                timestamps[i] = bucketBuffer.getLong();
+
+                if (chunkSize > 0) {
+                    offsets[i] = bucketBuffer.position();
+                    lengths[i] = chunkSize - 8;
+                    bucketBuffer.position(offsets[i] + lengths[i]);
+                }
             }
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Region file corrupted " + this.regionFile + " bucket: " + bucketIdx, ex);
         }
 
-        long footerSuperBlock = buffer.getLong();
-        if (footerSuperBlock != SUPERBLOCK)
-            throw new IOException("Footer superblock invalid " + this.regionFile);
+        DecodedBucket bucket = new DecodedBucket(data, offsets, lengths, timestamps);
+        BUCKET_CACHE.put(this, bucketIdx, bucket);
+        return bucket;
     }
 
     @Override
@@ -325,6 +368,7 @@ public class LinearRegionFile implements IRegionFile {
         synchronized(markedToSaveLock) {
             markedToSave = true;
         }
+        RegionWriteBackScheduler.markDirty(this);
     }
 
     private synchronized boolean isMarkedToSave() {
@@ -344,88 +388,144 @@ public class LinearRegionFile implements IRegionFile {
 
     public synchronized boolean hasChunk(ChunkPos pos) {
         openRegionFile();
-        openBucket(pos.x, pos.z);
-        return this.bufferUncompressedSize[getChunkIndex(pos.x, pos.z)] > 0;
+
+        int index = getChunkIndex(pos.x, pos.z);
+        if (!this.pending[index]) {
+            try {
+                resolveExistence(chunkToBucketIdx(index));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read region file " + this.regionFile, e);
+            }
+        }
+        return this.chunkExists[index];
+    }
+
+    private void putPending(int index, byte @Nullable [] chunkData, long timestamp) {
+        byte[] compressed = null;
+        if (chunkData != null) {
+            int maxCompressedLength = this.compressor.maxCompressedLength(chunkData.length);
+            byte[] buffer = new byte[maxCompressedLength];
+            int compressedLength = this.compressor.compress(chunkData, 0, chunkData.length, buffer, 0, maxCompressedLength);
+            compressed = new byte[compressedLength];
+            System.arraycopy(buffer, 0, compressed, 0, compressedLength);
+        }
+
+        this.pending[index] = true;
+        this.pendingChunks[index] = compressed;
+        this.pendingUncompressedSize[index] = chunkData != null ? chunkData.length : 0;
+        this.pendingTimestamps[index] = timestamp;
+        this.chunkExists[index] = chunkData != null;
+        this.chunkVersions[index]++;
     }
 
     public synchronized void write(ChunkPos pos, ByteBuffer buffer) {
         openRegionFile();
-        openBucket(pos.x, pos.z);
-        try {
-            byte[] b = toByteArray(new ByteArrayInputStream(buffer.array()));
-            int uncompressedSize = b.length;
 
-            if (uncompressedSize > MAX_CHUNK_SIZE) {
-                LOGGER.error("Chunk dupe attempt {}", this.regionFile);
-                clear(pos);
-            } else {
-                int maxCompressedLength = this.compressor.maxCompressedLength(b.length);
-                byte[] compressed = new byte[maxCompressedLength];
-                int compressedLength = this.compressor.compress(b, 0, b.length, compressed, 0, maxCompressedLength);
-                b = new byte[compressedLength];
-                System.arraycopy(compressed, 0, b, 0, compressedLength);
-
-                int index = getChunkIndex(pos.x, pos.z);
-                this.buffer[index] = b;
-                this.chunkTimestamps[index] = getTimestamp();
-                this.bufferUncompressedSize[getChunkIndex(pos.x, pos.z)] = uncompressedSize;
-            }
-        } catch (IOException e) {
-            LOGGER.error("Chunk write IOException {} {}", e, this.regionFile);
+        byte[] b = new byte[buffer.remaining()];
+        buffer.duplicate().get(b);
+
+        if (b.length > MAX_CHUNK_SIZE) {
+            LOGGER.error("Chunk dupe attempt {}", this.regionFile);
+            clear(pos);
+        } else {
+            this.putPending(getChunkIndex(pos.x, pos.z), b, getTimestamp());
         }
         markToSave();
     }
 
     public DataOutputStream getChunkDataOutputStream(ChunkPos pos) {
         openRegionFile();
-        openBucket(pos.x, pos.z);
         return new DataOutputStream(new BufferedOutputStream(new LinearRegionFile.ChunkBuffer(pos)));
     }
 
     @Nullable
-    public synchronized DataInputStream getChunkDataInputStream(ChunkPos pos) {
+    public synchronized DataInputStream getChunkDataInputStream(ChunkPos pos) throws IOException {
         openRegionFile();
-        openBucket(pos.x, pos.z);
 
-        if(this.bufferUncompressedSize[getChunkIndex(pos.x, pos.z)] != 0) {
-            byte[] content = new byte[bufferUncompressedSize[getChunkIndex(pos.x, pos.z)]];
-            this.decompressor.decompress(this.buffer[getChunkIndex(pos.x, pos.z)], 0, content, 0, bufferUncompressedSize[getChunkIndex(pos.x, pos.z)]);
-            return new DataInputStream(new ByteArrayInputStream(content));
+        int index = getChunkIndex(pos.x, pos.z);
+        if (!this.pending[index]) {
+            resolveExistence(chunkToBucketIdx(index));
         }
-        return null;
+        byte[] content = this.pending[index] ? this.readPending(index) : this.chunkExists[index] ? this.readFromBucket(index, this.openBucket(chunkToBucketIdx(index))) : null;
+
+        return content != null ? new DataInputStream(new ByteArrayInputStream(content)) : null;
+    }
+
+    private byte @Nullable [] readPending(int index) {
+        if (this.pendingChunks[index] == null) return null;
+
+        byte[] content = new byte[this.pendingUncompressedSize[index]];
+        this.decompressor.decompress(this.pendingChunks[index], 0, content, 0, this.pendingUncompressedSize[index]);
+        return content;
+    }
+
+    private byte @Nullable [] readFromBucket(int index, @Nullable DecodedBucket bucket) {
+        if (bucket == null) return null;
+
+        int local = chunkIndexInBucket(index);
+        if (bucket.lengths[local] <= 0) return null;
+
+        byte[] content = new byte[bucket.lengths[local]];
+        System.arraycopy(bucket.data, bucket.offsets[local], content, 0, content.length);
+        return content;
     }
 
     public synchronized void clear(ChunkPos pos) {
         openRegionFile();
-        openBucket(pos.x, pos.z);
-        int i = getChunkIndex(pos.x, pos.z);
-        this.buffer[i] = null;
-        this.bufferUncompressedSize[i] = 0;
-        this.chunkTimestamps[i] = 0;
+        this.putPending(getChunkIndex(pos.x, pos.z), null, 0L);
         markToSave();
     }
 
     public synchronized void close() throws IOException {
         openRegionFile();
         close = true;
+        RegionWriteBackScheduler.remove(this);
         try {
             flush();
         } catch(IOException e) {
             throw new IOException("Region flush IOException " + e + " " + this.regionFile);
+        } finally {
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+            BUCKET_CACHE.invalidateAll(this);
         }
     }
 
     public synchronized void flush() throws IOException {
-        if (!isMarkedToSave()) return;
+        this.writeBack();
+        this.force();
+    }
+
+    /**
+     * Writes the region to its temporary file without syncing it, {@link #force()} syncs it and moves it into place.
+     */
+    @Override
+    public synchronized long writeBack() throws IOException {
+        if (!isMarkedToSave()) return 0L;
 
         openRegionFile();
 
         long timestamp = getTimestamp();
+        int bucketCount = gridSize * gridSize;
 
-        long writeStart = System.nanoTime();
-        File tempFile = new File(regionFile.toString() + ".tmp");
-        FileOutputStream fileStream = new FileOutputStream(tempFile);
-        DataOutputStream dataStream = new DataOutputStream(fileStream);
+        boolean[] rewritten = new boolean[bucketCount];
+        for (int i = 0; i < 1024; i++) {
+            if (this.pending[i]) {
+                rewritten[chunkToBucketIdx(i)] = true;
+            }
+        }
+
+        byte[][] buckets = new byte[bucketCount][];
+        for (int i = 0; i < bucketCount; i++) {
+            if (rewritten[i]) {
+                buckets[i] = encodeBucket(i);
+            }
+        }
+
+        ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(headerStream);
 
         dataStream.writeLong(SUPERBLOCK);
         dataStream.writeByte(VERSION);
@@ -450,78 +550,173 @@ public class LinearRegionFile implements IRegionFile {
         dataStream.writeInt(regionX);
         dataStream.writeInt(regionZ);
 
-        boolean[] chunkExistenceBitmap = new boolean[1024];
-        for (int i = 0; i < 1024; i++) {
-            chunkExistenceBitmap[i] = (this.bufferUncompressedSize[i] > 0);
+        for (int i = 0; i < bucketCount; i++) {
+            resolveExistence(i);
         }
-        writeSerializedExistenceBitmap(dataStream, chunkExistenceBitmap);
+        writeSerializedExistenceBitmap(dataStream, this.chunkExists);
 
         writeNBTFeatures(dataStream);
 
-        int bucketMisses = 0;
-        byte[][] buckets = new byte[gridSize * gridSize][];
-        for (int bx = 0; bx < gridSize; bx++) {
-            for (int bz = 0; bz < gridSize; bz++) {
-                if (bucketBuffers != null && bucketBuffers[bx * gridSize + bz] != null) {
-                    buckets[bx * gridSize + bz] = bucketBuffers[bx * gridSize + bz];
-                    continue;
-                }
-                bucketMisses++;
-
-                ByteArrayOutputStream bucketStream = new ByteArrayOutputStream();
-                ZstdOutputStream zstdStream = new ZstdOutputStream(bucketStream, this.compressionLevel);
-                DataOutputStream bucketDataStream = new DataOutputStream(zstdStream);
-
-                boolean hasData = false;
-                for (int cx = 0; cx < 32 / gridSize; cx++) {
-                    for (int cz = 0; cz < 32 / gridSize; cz++) {
-                        int chunkIndex = (bx * 32 / gridSize + cx) + (bz * 32 / gridSize + cz) * 32;
-                        if (this.bufferUncompressedSize[chunkIndex] > 0) {
-                            hasData = true;
-                            byte[] chunkData = new byte[this.bufferUncompressedSize[chunkIndex]];
-                            this.decompressor.decompress(this.buffer[chunkIndex], 0, chunkData, 0, this.bufferUncompressedSize[chunkIndex]);
-                            bucketDataStream.writeInt(chunkData.length + 8);
-                            bucketDataStream.writeLong(this.chunkTimestamps[chunkIndex]);
-                            bucketDataStream.write(chunkData);
-                        } else {
-                            bucketDataStream.writeInt(0);
-                            bucketDataStream.writeLong(this.chunkTimestamps[chunkIndex]);
-                        }
+        long[] offsets = new long[bucketCount];
+        int[] sizes = new int[bucketCount];
+        byte[] levels = new byte[bucketCount];
+        long[] hashes = new long[bucketCount];
+
+        long position = dataStream.size() + (long) bucketCount * BUCKET_INDEX_ENTRY_SIZE;
+        for (int i = 0; i < bucketCount; i++) {
+            if (rewritten[i]) {
+                sizes[i] = buckets[i] != null ? buckets[i].length : 0;
+                levels[i] = (byte) this.compressionLevel;
+                hashes[i] = buckets[i] != null ? LongHashFunction.xx().hashBytes(buckets[i]) : 0;
+            } else {
+                sizes[i] = this.bucketSizes[i];
+                levels[i] = this.bucketCompressionLevels[i];
+                hashes[i] = this.bucketHashes[i];
+            }
+
+            offsets[i] = sizes[i] > 0 ? position : 0;
+            position += sizes[i];
+
+            dataStream.writeLong(offsets[i]);
+            dataStream.writeInt(sizes[i]);
+            dataStream.writeByte(levels[i]);
+            dataStream.writeLong(hashes[i]);
+        }
+        dataStream.flush();
+
+        try (FileChannel tempChannel = FileChannel.open(this.tempFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(tempChannel, ByteBuffer.wrap(headerStream.toByteArray()));
+
+            for (int i = 0; i < bucketCount; i++) {
+                if (sizes[i] == 0) continue;
+
+                if (rewritten[i]) {
+                    writeFully(tempChannel, ByteBuffer.wrap(buckets[i]));
+                } else {
+                    // Unchanged bucket, copy the compressed bytes straight from the current file
+                    long copied = 0;
+                    while (copied < sizes[i]) {
+                        long transferred = this.channel.transferTo(this.bucketOffsets[i] + copied, sizes[i] - copied, tempChannel);
+                        if (transferred <= 0) throw new EOFException("Unexpected end of region file " + this.regionFile + " bucket: " + i);
+                        copied += transferred;
                     }
                 }
-                bucketDataStream.close();
+            }
+
+            writeFully(tempChannel, ByteBuffer.allocate(FOOTER_SIZE).putLong(0, SUPERBLOCK));
+        }
+
+        this.pendingWrite = new PendingWrite(offsets, sizes, levels, hashes, rewritten, this.pending.clone(), this.chunkVersions.clone());
+        return position + FOOTER_SIZE;
+    }
+
+    private byte @Nullable [] encodeBucket(int bucketIdx) throws IOException {
+        int bx = bucketIdx / gridSize, bz = bucketIdx % gridSize;
+        DecodedBucket current = openBucket(bucketIdx);
+
+        ByteArrayOutputStream bucketStream = new ByteArrayOutputStream();
+        ZstdOutputStream zstdStream = new ZstdOutputStream(bucketStream, this.compressionLevel);
+        DataOutputStream bucketDataStream = new DataOutputStream(zstdStream);
+
+        boolean hasData = false;
+        for (int cx = 0; cx < bucketSize; cx++) {
+            for (int cz = 0; cz < bucketSize; cz++) {
+                int chunkIndex = (bx * bucketSize + cx) + (bz * bucketSize + cz) * 32;
+
+                byte[] chunkData;
+                long chunkTimestamp;
+                if (this.pending[chunkIndex]) {
+                    chunkData = readPending(chunkIndex);
+                    chunkTimestamp = this.pendingTimestamps[chunkIndex];
+                } else {
+                    chunkData = readFromBucket(chunkIndex, current);
+                    chunkTimestamp = current != null ? current.timestamps[cx * bucketSize + cz] : 0L;
+                }
 
-                if (hasData) {
-                    buckets[bx * gridSize + bz] = bucketStream.toByteArray();
+                if (chunkData != null) {
+                    hasData = true;
+                    bucketDataStream.writeInt(chunkData.length + 8);
+                    bucketDataStream.writeLong(chunkTimestamp);
+                    bucketDataStream.write(chunkData);
+                } else {
+                    bucketDataStream.writeInt(0);
+                    bucketDataStream.writeLong(chunkTimestamp);
                 }
             }
         }
+        bucketDataStream.close();
 
-        for (int i = 0; i < gridSize * gridSize; i++) {
-            dataStream.writeInt(buckets[i] != null ? buckets[i].length : 0);
-            dataStream.writeByte(this.compressionLevel);
-            long rawHash = 0;
-            if (buckets[i] != null) {
-                rawHash = LongHashFunction.xx().hashBytes(buckets[i]);
+        return hasData ? bucketStream.toByteArray() : null;
+    }
+
+    @Override
+    public synchronized void force() throws IOException {
+        PendingWrite write = this.pendingWrite;
+        if (write == null) return;
+
+        Path tempFile = this.tempFile();
+        try (FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            tempChannel.force(true); // Ensure atomicity on Btrfs
+        }
+
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+
+        try {
+            Files.move(tempFile, this.regionFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            // Keep serving reads from the old file, pending chunks are written again next time
+            if (Files.isReadable(this.regionFile)) {
+                this.channel = FileChannel.open(this.regionFile, StandardOpenOption.READ);
             }
-            dataStream.writeLong(rawHash);
+            this.pendingWrite = null;
+            markToSave();
+            throw ex;
         }
 
-        for (int i = 0; i < gridSize * gridSize; i++) {
-            if (buckets[i] != null) {
-                dataStream.write(buckets[i]);
+        this.channel = FileChannel.open(this.regionFile, StandardOpenOption.READ);
+        this.bucketOffsets = write.offsets;
+        this.bucketSizes = write.sizes;
+        this.bucketCompressionLevels = write.levels;
+        this.bucketHashes = write.hashes;
+
+        for (int i = 0; i < write.rewritten.length; i++) {
+            if (write.rewritten[i]) {
+                BUCKET_CACHE.invalidate(this, i);
             }
         }
 
-        dataStream.writeLong(SUPERBLOCK);
+        // Chunks written again since the write-back stay pending for the next one
+        for (int i = 0; i < 1024; i++) {
+            if (write.pending[i] && this.chunkVersions[i] == write.versions[i]) {
+                this.pending[i] = false;
+                this.pendingChunks[i] = null;
+                this.pendingUncompressedSize[i] = 0;
+                this.pendingTimestamps[i] = 0;
+            }
+        }
 
-        dataStream.flush();
-        fileStream.getFD().sync();
-        fileStream.getChannel().force(true); // Ensure atomicity on Btrfs
-        dataStream.close();
+        this.pendingWrite = null;
+    }
+
+    private Path tempFile() {
+        return Path.of(regionFile.toString() + ".tmp");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of region file at " + position);
+            position += read;
+        }
+    }
 
-        fileStream.close();
-        Files.move(tempFile.toPath(), this.regionFile, StandardCopyOption.REPLACE_EXISTING);
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 
     private void writeNBTFeatures(DataOutputStream dataStream) throws IOException {
@@ -559,18 +754,6 @@ public class LinearRegionFile implements IRegionFile {
         }
     }
 
-    private byte[] toByteArray(InputStream in) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] tempBuffer = new byte[4096];
-
-        int length;
-        while ((length = in.read(tempBuffer)) >= 0) {
-            out.write(tempBuffer, 0, length);
-        }
-
-        return out.toByteArray();
-    }
-
     private static int getChunkIndex(int x, int z) {
         return (x & 31) + ((z & 31) << 5);
     }
@@ -602,4 +785,54 @@ public class LinearRegionFile implements IRegionFile {
             LinearRegionFile.this.write(this.pos, bytebuffer);
         }
     }
+
+    private record PendingWrite(long[] offsets, int[] sizes, byte[] levels, long[] hashes, boolean[] rewritten, boolean[] pending, int[] versions) {
+    }
+
+    private record DecodedBucket(byte[] data, int[] offsets, int[] lengths, long[] timestamps) {
+    }
+
+    private record BucketKey(LinearRegionFile file, int bucket) {
+    }
+
+    /**
+     * Decompressed buckets of all open linear region files, least recently used evicted first.
+     */
+    private static final class BucketCache {
+        private final LinkedHashMap<BucketKey, DecodedBucket> buckets = new LinkedHashMap<>(256, 0.75f, true);
+        private long bytes = 0L;
+
+        synchronized @Nullable DecodedBucket get(LinearRegionFile file, int bucket) {
+            return this.buckets.get(new BucketKey(file, bucket));
+        }
+
+        synchronized void put(LinearRegionFile file, int bucket, DecodedBucket decoded) {
+            DecodedBucket previous = this.buckets.put(new BucketKey(file, bucket), decoded);
+            if (previous != null) this.bytes -= previous.data.length;
+            this.bytes += decoded.data.length;
+
+            long limit = DivineConfig.MiscCategory.linearBucketCacheMb * 1024L * 1024L;
+            Iterator<DecodedBucket> iterator = this.buckets.values().iterator();
+            while (this.bytes > limit && iterator.hasNext()) {
+                this.bytes -= iterator.next().data.length;
+                iterator.remove();
+            }
+        }
+
+        synchronized void invalidate(LinearRegionFile file, int bucket) {
+            DecodedBucket removed = this.buckets.remove(new BucketKey(file, bucket));
+            if (removed != null) this.bytes -= removed.data.length;
+        }
+
+        synchronized void invalidateAll(LinearRegionFile file) {
+            Iterator<Map.Entry<BucketKey, DecodedBucket>> iterator = this.buckets.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<BucketKey, DecodedBucket> entry = iterator.next();
+                if (entry.getKey().file() == file) {
+                    this.bytes -= entry.getValue().data.length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package org.bxteam.divinemc.region.type;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trained Zstd dictionaries of a single region folder (region, entities or poi of one dimension).
+ *
+ * <p>The dictionary used for new writes is stored as {@code zstd-dictionaries/active.zdict}; once it
+ * gets replaced by a newer training run it is kept as {@code <id>.zdict}, because chunks compressed
+ * with it still reference it by id.
+ */
+public final class ZstdDictionaryStore {
+    public static final String DIRECTORY_NAME = "zstd-dictionaries";
+    private static final String ACTIVE_FILE_NAME = "active.zdict";
+    private static final String EXTENSION = ".zdict";
+    private static final int ZSTD_FRAME_MAGIC = 0xFD2FB528;
+    private static final ConcurrentHashMap<Path, ZstdDictionaryStore> STORES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final Int2ObjectMap<Dictionary> dictionaries = new Int2ObjectOpenHashMap<>();
+    private volatile @Nullable Dictionary active;
+
+    private ZstdDictionaryStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public static @NotNull ZstdDictionaryStore forFolder(@NotNull Path regionFolder) throws IOException {
+        final Path directory = regionFolder.toAbsolutePath().normalize().resolve(DIRECTORY_NAME);
+        ZstdDictionaryStore store = STORES.get(directory);
+
+        if (store == null) {
+            final ZstdDictionaryStore created = new ZstdDictionaryStore(directory);
+            created.load();
+
+            store = STORES.putIfAbsent(directory, created);
+            if (store == null) {
+                store = created;
+            }
+        }
+
+        return store;
+    }
+
+    private synchronized void load() throws IOException {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                final Dictionary dictionary = new Dictionary(Files.readAllBytes(file));
+
+                this.dictionaries.put(dictionary.id, dictionary);
+                if (file.getFileName().toString().equals(ACTIVE_FILE_NAME)) {
+                    this.active = dictionary;
+                }
+            }
+        }
+    }
+
+    public @Nullable Dictionary active() {
+        return this.active;
+    }
+
+    public synchronized @Nullable Dictionary byId(int id) {
+        return this.dictionaries.get(id);
+    }
+
+    /**
+     * Makes the given trained dictionary the one used for new writes, keeping the previous one
+     * around for chunks that were compressed with it.
+     */
+    public synchronized @NotNull Dictionary install(byte @NotNull [] data) throws IOException {
+        final Dictionary dictionary = new Dictionary(data);
+        if (dictionary.id == 0) {
+            throw new IOException("Refusing to install a raw content dictionary without an id");
+        }
+
+        Files.createDirectories(this.directory);
+
+        final Dictionary previous = this.active;
+        final Path activeFile = this.directory.resolve(ACTIVE_FILE_NAME);
+        if (previous != null && Files.exists(activeFile)) {
+            Files.move(activeFile, this.directory.resolve(Integer.toUnsignedString(previous.id) + EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        final Path tempFile = this.directory.resolve(ACTIVE_FILE_NAME + ".tmp");
+        Files.write(tempFile, data);
+        Files.move(tempFile, activeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.dictionaries.put(dictionary.id, dictionary);
+        this.active = dictionary;
+
+        return dictionary;
+    }
+
+    /**
+     * Reads the dictionary id a Zstd frame was compressed with, or {@code 0} if it does not reference one.
+     */
+    public static int frameDictionaryId(@NotNull ByteBuffer frame, int offset) throws IOException {
+        if (frame.limit() - offset < 6 || Integer.reverseBytes(frame.getInt(offset)) != ZSTD_FRAME_MAGIC) {
+            throw new IOException("Not a zstd frame");
+        }
+
+        final int descriptor = frame.get(offset + 4) & 0xFF;
+        final boolean singleSegment = (descriptor & 0x20) != 0;
+        final int dictionaryIdPosition = offset + 5 + (singleSegment ? 0 : 1); // Window descriptor
+
+        return switch (descriptor & 0x03) {
+            case 1 -> frame.get(dictionaryIdPosition) & 0xFF;
+            case 2 -> Short.reverseBytes(frame.getShort(dictionaryIdPosition)) & 0xFFFF;
+            case 3 -> Integer.reverseBytes(frame.getInt(dictionaryIdPosition));
+            default -> 0;
+        };
+    }
+
+    public static final class Dictionary {
+        private final int id;
+        private final byte[] data;
+        private final ZstdDictDecompress decompress;
+        private final Int2ObjectMap<ZstdDictCompress> compressByLevel = new Int2ObjectOpenHashMap<>();
+
+        private Dictionary(byte[] data) {
+            this.id = (int) Zstd.getDictIdFromDict(data);
+            this.data = data;
+            this.decompress = new ZstdDictDecompress(data);
+        }
+
+        public int id() {
+            return this.id;
+        }
+
+        public int size() {
+            return this.data.length;
+        }
+
+        public @NotNull ZstdDictDecompress decompress() {
+            return this.decompress;
+        }
+
+        public synchronized @NotNull ZstdDictCompress compress(int level) {
+            ZstdDictCompress compress = this.compressByLevel.get(level);
+
+            if (compress == null) {
+                compress = new ZstdDictCompress(this.data, level);
+                this.compressByLevel.put(level, compress);
+            }
+
+            return compress;
+        }
+    }
+}